@@ -0,0 +1,153 @@
+/*
+ * BinaryProtocol.java
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary framing, an alternative to the text protocol negotiated per connection
+ * A client asks for it by sending MAGIC and a version as the very first bytes of the connection;
+ * the server answers with MAGIC and the same version if it speaks it, otherwise with its own
+ * VERSION before closing, and both sides then exchange frames. Anything else as the first byte
+ * is a text command, so text clients are unaffected
+ *
+ * Request:  opcode (1 byte), payload length (2 bytes), payload
+ * Response: status code (2 bytes), payload length (4 bytes), payload
+ *
+ * Numbers are big-endian and payloads UTF-8. Status codes are the text protocol's (200, 401...).
+ * LOGIN carries the user id length (1 byte), the user id and the password; MSGSTORE carries
+ * the message and is answered once it is stored, without the text protocol's intermediate
+ * "200 OK"; MSGGET and STATS answers carry the message and the report. MSGLIST carries the
+ * offset and count (4 bytes each) and is answered with a 200 response per message, ended by
+ * a 200 response without payload. CURSOR without payload is answered with the session's MSGGET
+ * position as decimal text; with a position (4 bytes) it moves the session there. After
+ * SUBSCRIBE every newly stored message arrives as a 200 response carrying it
+ *
+ * Version 2 compresses MSGLIST: each chunk of the listing's per-message responses is sent
+ * deflated as the payload of one 200 response, all chunks of a listing being one deflate stream
+ * flushed at the end of each chunk (see MessageListing); the empty 200 response still ends it
+ */
+final class BinaryProtocol {
+
+    static final int MAGIC = 0xB1;
+    static final int VERSION = 2;
+
+    // First version whose MSGLIST responses are compressed; version 1 clients are still served
+    static final int COMPRESSED_VERSION = 2;
+
+    static final int REQUEST_HEADER = 3;
+    static final int RESPONSE_HEADER = 6;
+
+    // Longest request payload, limited by its 2-byte length
+    static final int MAX_PAYLOAD = 0xFFFF;
+
+    static final int MSGGET = 1;
+    static final int LOGIN = 2;
+    static final int LOGOUT = 3;
+    static final int MSGSTORE = 4;
+    static final int SHUTDOWN = 5;
+    static final int QUIT = 6;
+    static final int STATS = 7;
+    static final int SUBSCRIBE = 8;
+    static final int MSGLIST = 9;
+    static final int CURSOR = 10;
+
+    private static final String[] COMMANDS = { null, "MSGGET", "LOGIN", "LOGOUT", "MSGSTORE", "SHUTDOWN", "QUIT", "STATS", "SUBSCRIBE", "MSGLIST", "CURSOR" };
+
+    private BinaryProtocol() {
+    }
+
+
+    // Opcode of a text command word, case-insensitive, or -1 if there is none
+    static int opcode(String command) {
+        for (int i = 1; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equalsIgnoreCase(command)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Number of opcodes, including the unused 0
+    static int opcodeCount() {
+        return COMMANDS.length;
+    }
+
+    // Text command word of an opcode, or null if there is none
+    static String command(int opcode) {
+        return opcode > 0 && opcode < COMMANDS.length ? COMMANDS[opcode] : null;
+    }
+
+
+    /**
+     * Fills in a response header at the start of the given array
+     */
+    static void putResponseHeader(byte[] header, int status, int length) {
+        header[0] = (byte) (status >>> 8);
+        header[1] = (byte) status;
+        header[2] = (byte) (length >>> 24);
+        header[3] = (byte) (length >>> 16);
+        header[4] = (byte) (length >>> 8);
+        header[5] = (byte) length;
+    }
+
+    /**
+     * Encodes a complete response with the given payload, null for none
+     */
+    static byte[] encodeResponse(int status, String payload) {
+        byte[] bytes = payload == null ? new byte[0] : payload.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[RESPONSE_HEADER + bytes.length];
+        putResponseHeader(frame, status, bytes.length);
+        System.arraycopy(bytes, 0, frame, RESPONSE_HEADER, bytes.length);
+        return frame;
+    }
+
+    static int getUnsignedShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 8 | bytes[offset + 1] & 0xFF;
+    }
+
+    static int getInt(byte[] bytes, int offset) {
+        return getUnsignedShort(bytes, offset) << 16 | getUnsignedShort(bytes, offset + 2);
+    }
+
+
+    /**
+     * Sends a request frame. Used by the client
+     */
+    static void writeRequest(DataOutputStream out, int opcode, byte[] payload) throws IOException {
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload of " + payload.length + " bytes is too long");
+        }
+        out.writeByte(opcode);
+        out.writeShort(payload.length);
+        out.write(payload);
+    }
+
+    // Payload of a MSGLIST request
+    static byte[] listPayload(int offset, int count) {
+        return new byte[] {
+            (byte) (offset >>> 24), (byte) (offset >>> 16), (byte) (offset >>> 8), (byte) offset,
+            (byte) (count >>> 24), (byte) (count >>> 16), (byte) (count >>> 8), (byte) count
+        };
+    }
+
+    // Payload of a CURSOR request that resumes at the given position
+    static byte[] cursorPayload(int position) {
+        return new byte[] { (byte) (position >>> 24), (byte) (position >>> 16), (byte) (position >>> 8), (byte) position };
+    }
+
+    // Payload of a LOGIN request
+    static byte[] loginPayload(String userId, String password) {
+        byte[] user = userId.getBytes(StandardCharsets.UTF_8);
+        byte[] pass = password.getBytes(StandardCharsets.UTF_8);
+        if (user.length > 0xFF) {
+            throw new IllegalArgumentException("User id is too long");
+        }
+        byte[] payload = new byte[1 + user.length + pass.length];
+        payload[0] = (byte) user.length;
+        System.arraycopy(user, 0, payload, 1, user.length);
+        System.arraycopy(pass, 0, payload, 1 + user.length, pass.length);
+        return payload;
+    }
+}
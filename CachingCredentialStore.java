@@ -0,0 +1,79 @@
+/*
+ * CachingCredentialStore.java
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Remembers credentials that passed another store's full check, so a client that reconnects
+ * and logs in again does not pay for key derivation every time
+ * Entries hold a SHA-256 digest of the password under a random per-process salt, never the
+ * password itself, and are compared in constant time. Only successes are cached, so a wrong
+ * password always takes the full check; the least recently used entry is evicted beyond maxEntries
+ */
+final class CachingCredentialStore implements CredentialStore {
+
+    private final CredentialStore delegate;
+    private final byte[] salt = new byte[16];
+
+    // User id -> digest of the password that was verified, in access order, guarded by itself
+    private final LinkedHashMap<String, byte[]> verified;
+
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    CachingCredentialStore(CredentialStore delegate, int maxEntries) {
+        this.delegate = delegate;
+        new SecureRandom().nextBytes(salt);
+        this.verified = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+
+    @Override
+    public boolean verify(String userId, String password) {
+        if (isCached(userId, password)) {
+            return true;
+        }
+        boolean valid = delegate.verify(userId, password);
+        if (valid) {
+            byte[] digest = digest(password);
+            synchronized (verified) {
+                verified.put(userId, digest);
+            }
+        }
+        return valid;
+    }
+
+    @Override
+    public boolean isCached(String userId, String password) {
+        byte[] expected;
+        synchronized (verified) {
+            expected = verified.get(userId);
+        }
+        return expected != null && MessageDigest.isEqual(digest(password), expected);
+    }
+
+    @Override
+    public int size() {
+        return delegate.size();
+    }
+
+
+    private byte[] digest(String password) {
+        MessageDigest sha256 = SHA_256.get();
+        sha256.update(salt);
+        return sha256.digest(password.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -4,9 +4,43 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.*;
 
 public class Client {
-    public static final int SERVER_PORT = 3520; // Changed port number to last 4 of UMID
+    // Changed port number to last 4 of UMID; -Dclient.port=N reaches a server on another port
+    public static final int SERVER_PORT = Integer.getInteger("client.port", 3520);
+
+    // Load test settings: connections, target requests per second across all of them, duration
+    // and command mix as COMMAND:weight pairs (-Dclient.load.connections=N, -Dclient.load.rate=R,
+    // -Dclient.load.seconds=S, -Dclient.load.mix=MSGGET:90,LOGIN:4,MSGSTORE:5,LOGOUT:1)
+    private static final int LOAD_CONNECTIONS = Integer.getInteger("client.load.connections", 8);
+    private static final int LOAD_RATE = Integer.getInteger("client.load.rate", 1000);
+    private static final int LOAD_SECONDS = Integer.getInteger("client.load.seconds", 10);
+    private static final String LOAD_MIX = System.getProperty("client.load.mix", "MSGGET:90,LOGIN:4,MSGSTORE:5,LOGOUT:1");
+
+    // Account used by LOGIN and MSGSTORE in load mode (-Dclient.load.user=..., -Dclient.load.password=...)
+    private static final String LOAD_USER = System.getProperty("client.load.user", "john");
+    private static final String LOAD_PASSWORD = System.getProperty("client.load.password", "john2025");
+
+    // Commands in each load test request, sent with one write (-Dclient.load.batch=N)
+    private static final int LOAD_BATCH = Integer.getInteger("client.load.batch", 1);
+
+    // Most commands a batch has in flight, so neither side blocks writing while the other
+    // is not reading (-Dclient.batch.window=N)
+    private static final int BATCH_WINDOW = Integer.getInteger("client.batch.window", 128);
+
+    // Ask binary servers for compressed listings; otherwise binary protocol version 1 is spoken
+    // (-Dclient.compress=true|false)
+    private static final boolean COMPRESS = Boolean.parseBoolean(System.getProperty("client.compress", "true"));
+
+    // Set in load mode, where the response handlers must not print
+    private static boolean quiet = false;
 
     public static void main(String[] args) {
         Socket clientSocket = null;  
@@ -18,9 +52,19 @@ public class Client {
 
         // Check the number of command line parameters
         if (args.length < 1) {
-            System.out.println("Usage: java Client <Server IP Address>");
+            System.out.println("Usage: java Client <Server IP Address> [--load] [--binary]");
             System.exit(1);
         }
+        List<String> options = Arrays.asList(args).subList(1, args.length);
+        boolean binary = options.contains("--binary");
+        if (options.contains("--load")) {
+            runLoadTest(args[0], binary);
+            return;
+        }
+        if (binary) {
+            runBinaryClient(args[0]);
+            return;
+        }
 
         // Try to open a socket on SERVER_PORT
         // Try to open input and output streams
@@ -46,18 +90,31 @@ public class Client {
                 System.out.print("Enter a command: ");
                 
                 while ((userInput = stdInput.readLine()) != null) {
-                    // Send command to server
-                    os.println(userInput);
-                    
                     // Parse command to determine response handling
                     String[] parts = userInput.trim().split("\\s+");
                     String command = parts[0].toUpperCase(); // take the first part after splitting as a command
                     
+                    // BATCH <count> <command> is handled by the client: the command is pipelined count times
+                    if (command.equals("BATCH")) {
+                        handleBatchCommand(parts, is, os);
+                        System.out.print("Enter a command: ");
+                        continue;
+                    }
+                    
+                    // Send command to server
+                    os.println(userInput);
+                    
                     // Handle different command responses
                     switch (command) {
                         case "MSGGET":
                             handleMsgGetResponse(is);
                             break;
+                        case "MSGLIST":
+                            handleMsgListResponse(is, message -> System.out.println("  " + message));
+                            break;
+                        case "CURSOR":
+                            handleCursorResponse(is, parts.length == 1);
+                            break;
                         case "LOGIN":
                             handleLoginResponse(is);
                             break;
@@ -65,7 +122,7 @@ public class Client {
                             handleLogoutResponse(is);
                             break;
                         case "MSGSTORE":
-                            handleMsgStoreCommand(stdInput, is, os);
+                            handleMsgStoreCommand(stdInput, null, is, os);
                             break;
                         case "SHUTDOWN":
                             if (handleShutdownResponse(is)) {
@@ -74,6 +131,15 @@ public class Client {
                             }
                             // If not successful, continue to prompt for commands
                             break;
+                        case "STATS":
+                            handleStatsResponse(is);
+                            break;
+                        case "SUBSCRIBE":
+                            if (handleSubscribeResponse(is)) {
+                                // The connection now only carries pushed messages
+                                return;
+                            }
+                            break;
                         case "QUIT":
                             handleQuitResponse(is);
                             return; // Exit after receiving server confirmation
@@ -105,44 +171,124 @@ public class Client {
     /**
      * Handles the response from MSGGET command
      * Expects "200 OK" followed by the message of the day
+     * Returns the status line, or null if the connection failed
      */
-    private static void handleMsgGetResponse(BufferedReader is) {
+    static String handleMsgGetResponse(BufferedReader is) {
         try {
             // Read the status line (should be "200 OK")
             String statusLine = is.readLine();
             if (statusLine != null) {
-                System.out.println("Server response: " + statusLine);
+                show("Server response: " + statusLine);
                 
                 // If we got "200 OK", read the message of the day
                 if (statusLine.equals("200 OK")) {
                     String messageOfDay = is.readLine();
-                    if (messageOfDay != null) {
-                        System.out.println("Message of the day: " + messageOfDay);
+                    if (messageOfDay == null) {
+                        return null;
                     }
+                    show("Message of the day: " + messageOfDay);
                 }
             }
+            return statusLine;
         } catch (IOException e) {
-            System.err.println("Error reading MSGGET response: " + e);
+            showError("Error reading MSGGET response: " + e);
+            return null;
         }
     }
     
     
+    /**
+     * Handles the response from MSGLIST command
+     * Expects "200 OK" followed by one line per message up to a line with a single ".".
+     * Each message is handed to the consumer as soon as its line is read, with the doubled
+     * leading '.' removed, so a long listing is never held in memory
+     * Returns the number of messages, or -1 if the listing was refused or cut off
+     */
+    static int handleMsgListResponse(BufferedReader is, Consumer<String> consumer) {
+        try {
+            String statusLine = is.readLine();
+            if (statusLine == null) {
+                return -1;
+            }
+            show("Server response: " + statusLine);
+            if (!statusLine.equals("200 OK")) {
+                if (statusLine.equals("400 Bad Request")) {
+                    show("Usage: MSGLIST <offset> <count>");
+                }
+                return -1;
+            }
+            int count = 0;
+            String line;
+            while ((line = is.readLine()) != null) {
+                if (line.equals(".")) {
+                    show(count + " messages listed");
+                    return count;
+                }
+                consumer.accept(line.startsWith(".") ? line.substring(1) : line);
+                count++;
+            }
+            return -1;
+        } catch (IOException e) {
+            showError("Error reading MSGLIST response: " + e);
+            return -1;
+        }
+    }
+
+
+    /**
+     * Handles the response from CURSOR command
+     * Expects "200 OK", followed by the position of the next MSGGET when it was asked for.
+     * Sending "CURSOR <position>" on a new connection resumes the rotation from there
+     * Returns the position, 0 after a resume, or -1 if the request was refused or the connection failed
+     */
+    static int handleCursorResponse(BufferedReader is, boolean query) {
+        try {
+            String statusLine = is.readLine();
+            if (statusLine == null) {
+                return -1;
+            }
+            show("Server response: " + statusLine);
+            if (!statusLine.equals("200 OK")) {
+                if (statusLine.equals("400 Bad Request")) {
+                    show("Usage: CURSOR [position]");
+                }
+                return -1;
+            }
+            if (!query) {
+                return 0;
+            }
+            String position = is.readLine();
+            if (position == null) {
+                return -1;
+            }
+            show("Next message: #" + position);
+            return Integer.parseInt(position);
+        } catch (IOException | NumberFormatException e) {
+            showError("Error reading CURSOR response: " + e);
+            return -1;
+        }
+    }
+
+
     /**
      * Handles the MSGSTORE command - two-step process
      * Send MSGSTORE and check authorization
-     * If authorized, prompt for and send message
+     * If authorized, send the given message, or prompt for one when it is null
+     * Returns the last status line, or null if the connection failed
      */
-    private static void handleMsgStoreCommand(BufferedReader stdInput, BufferedReader is, PrintStream os) {
+    static String handleMsgStoreCommand(BufferedReader stdInput, String messageToStore, BufferedReader is, PrintStream os) {
         try {
             // Read server's authorization response
             String authResponse = is.readLine();
             if (authResponse != null) {
-                System.out.println("Server response: " + authResponse);
+                show("Server response: " + authResponse);
                 
                 if (authResponse.equals("200 OK")) {
-                    // User is authorized, prompt for message
-                    System.out.print("Enter message to store: ");
-                    String messageToStore = stdInput.readLine();
+                    if (messageToStore == null) {
+                        // User is authorized, prompt for message
+                        System.out.print("Enter message to store: ");
+                        messageToStore = stdInput.readLine();
+                    }
                     
                     if (messageToStore != null && !messageToStore.trim().isEmpty()) {
                         // Send the message to server
@@ -151,20 +297,23 @@ public class Client {
                         // Read final confirmation
                         String confirmResponse = is.readLine();
                         if (confirmResponse != null) {
-                            System.out.println("Server response: " + confirmResponse);
+                            show("Server response: " + confirmResponse);
                             if (confirmResponse.equals("200 OK")) {
-                                System.out.println("Message stored successfully!");
+                                show("Message stored successfully!");
                             }
                         }
+                        return confirmResponse;
                     } else {
-                        System.out.println("Empty message not sent.");
+                        show("Empty message not sent.");
                     }
                 } else if (authResponse.equals("401 You are not currently logged in, login first")) {
-                    System.out.println("Please login first before storing messages.");
+                    show("Please login first before storing messages.");
                 }
             }
+            return authResponse;
         } catch (IOException e) {
-            System.err.println("Error handling MSGSTORE command: " + e);
+            showError("Error handling MSGSTORE command: " + e);
+            return null;
         }
     }
     
@@ -196,24 +345,83 @@ public class Client {
      } 
 
 
+    /**
+     * Handles the response from STATS command
+     * Expects "200 OK" followed by one line per metric up to a line with a single ".",
+     * or "401" / "402" when the user is not root
+     */
+    private static void handleStatsResponse(BufferedReader is) {
+        try {
+            String statusLine = is.readLine();
+            if (statusLine != null) {
+                System.out.println("Server response: " + statusLine);
+
+                if (statusLine.equals("200 OK")) {
+                    String line;
+                    while ((line = is.readLine()) != null && !line.equals(".")) {
+                        System.out.println("  " + line);
+                    }
+                } else if (statusLine.equals("401 You are not currently logged in, login first")) {
+                    System.out.println("Please login first before using STATS command.");
+                } else if (statusLine.equals("402 User not allowed to execute this command")) {
+                    System.out.println("Only the root user can view server statistics.");
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading STATS response: " + e);
+        }
+    }
+
+
+    /**
+     * Handles the response from SUBSCRIBE command
+     * After "200 OK" prints every message the server pushes until the connection closes,
+     * returns whether the subscription was accepted
+     */
+    private static boolean handleSubscribeResponse(BufferedReader is) {
+        try {
+            String statusLine = is.readLine();
+            if (statusLine == null) {
+                return false;
+            }
+            System.out.println("Server response: " + statusLine);
+            if (!statusLine.equals("200 OK")) {
+                return false;
+            }
+            System.out.println("Waiting for new messages (Ctrl+C to stop)");
+            String message;
+            while ((message = is.readLine()) != null) {
+                System.out.println("New message: " + message);
+            }
+            System.out.println("Server closed the connection");
+        } catch (IOException e) {
+            System.err.println("Error reading pushed messages: " + e);
+        }
+        return true;
+    }
+
+
     /**
      * Handles the response from LOGIN command
      * Expects either "200 OK" or "410 Wrong UserID or Password"
+     * Returns the status line, or null if the connection failed
      */
-    private static void handleLoginResponse(BufferedReader is) {
+    static String handleLoginResponse(BufferedReader is) {
         try {
             String statusLine = is.readLine();
             if (statusLine != null) {
-                System.out.println("Server response: " + statusLine);
+                show("Server response: " + statusLine);
                 
                 if (statusLine.equals("200 OK")) {
-                    System.out.println("Login successful!");
+                    show("Login successful!");
                 } else if (statusLine.equals("410 Wrong UserID or Password")) {
-                    System.out.println("Login failed. Please check your credentials.");
+                    show("Login failed. Please check your credentials.");
                 }
             }
+            return statusLine;
         } catch (IOException e) {
-            System.err.println("Error reading LOGIN response: " + e);
+            showError("Error reading LOGIN response: " + e);
+            return null;
         }
     }
 
@@ -221,21 +429,24 @@ public class Client {
     /**
      * Handles the response from LOGOUT command
      * Expects "200 OK" confirmation from server
+     * Returns the status line, or null if the connection failed
      */
-    private static void handleLogoutResponse(BufferedReader is) {
+    static String handleLogoutResponse(BufferedReader is) {
         try {
             String statusLine = is.readLine();
             if (statusLine != null) {
-                System.out.println("Server response: " + statusLine);
+                show("Server response: " + statusLine);
                 
                 if (statusLine.equals("200 OK")) {
-                    System.out.println("Logout successful!");
+                    show("Logout successful!");
                 } else {
-                    System.out.println("Logout failed.");
+                    show("Logout failed.");
                 }
             }
+            return statusLine;
         } catch (IOException e) {
-            System.err.println("Error reading LOGOUT response: " + e);
+            showError("Error reading LOGOUT response: " + e);
+            return null;
         }
     }
 
@@ -261,4 +472,691 @@ public class Client {
             System.err.println("Error reading QUIT response: " + e);
         }
     }
-}
\ No newline at end of file
+
+
+    /**
+     * Handles the client-side BATCH command: BATCH <count> <command> sends the command count
+     * times with one write and prints the replies and the time the whole batch took
+     */
+    private static void handleBatchCommand(String[] parts, BufferedReader is, PrintStream os) {
+        int count;
+        try {
+            count = parts.length < 3 ? -1 : Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            count = -1;
+        }
+        if (count < 1) {
+            System.out.println("Usage: BATCH <count> <MSGGET | LOGIN <userId> <password> | LOGOUT | MSGSTORE <message>>");
+            return;
+        }
+        String command = String.join(" ", Arrays.copyOfRange(parts, 2, parts.length));
+        
+        long start = System.nanoTime();
+        List<String> statuses;
+        try {
+            statuses = sendBatch(Collections.nCopies(count, command), is, os);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        System.out.println("Batch of " + count + " completed in " + micros + " us, "
+            + Collections.frequency(statuses, "200 OK") + " OK");
+    }
+
+
+    /**
+     * Sends commands pipelined, several per write, and reads the replies in order with the
+     * usual response handlers. Supports MSGGET, LOGIN <userId> <password>, LOGOUT and
+     * "MSGSTORE <message>", which sends MSGSTORE and the message together
+     * At most BATCH_WINDOW commands are in flight at a time
+     * Returns the status line of each command; the list ends early if the connection failed
+     */
+    static List<String> sendBatch(List<String> commands, BufferedReader is, PrintStream os) {
+        for (String command : commands) {
+            String word = command.trim().split("\\s+")[0].toUpperCase();
+            if (!LoadStats.COMMANDS.contains(word)) {
+                throw new IllegalArgumentException("Not supported in a batch: " + command);
+            }
+        }
+        
+        List<String> statuses = new ArrayList<>(commands.size());
+        StringBuilder lines = new StringBuilder();
+        for (int first = 0; first < commands.size(); first += BATCH_WINDOW) {
+            List<String> window = commands.subList(first, Math.min(commands.size(), first + BATCH_WINDOW));
+            lines.setLength(0);
+            for (String command : window) {
+                String trimmed = command.trim();
+                if (trimmed.toUpperCase().startsWith("MSGSTORE")) {
+                    lines.append("MSGSTORE\n").append(trimmed.substring("MSGSTORE".length()).trim()).append('\n');
+                } else {
+                    lines.append(trimmed).append('\n');
+                }
+            }
+            os.print(lines);
+            os.flush();
+            
+            for (String command : window) {
+                String status = readResponse(command.trim().split("\\s+")[0].toUpperCase(), is);
+                if (status == null) {
+                    return statuses;
+                }
+                statuses.add(status);
+            }
+        }
+        return statuses;
+    }
+
+
+    // Reads the reply to one pipelined command
+    private static String readResponse(String command, BufferedReader is) {
+        switch (command) {
+            case "MSGGET":
+                return handleMsgGetResponse(is);
+            case "LOGIN":
+                return handleLoginResponse(is);
+            case "LOGOUT":
+                return handleLogoutResponse(is);
+            case "MSGSTORE":
+                return readPipelinedStoreResponse(is);
+            default:
+                throw new IllegalArgumentException(command);
+        }
+    }
+
+
+    /**
+     * Reads the replies to a MSGSTORE sent together with its message: "200 OK" and the final
+     * status, or a refusal followed by the server's reply to the message line, which it then
+     * took for a command (an echo, unless the message itself looks like a command)
+     */
+    private static String readPipelinedStoreResponse(BufferedReader is) {
+        try {
+            String authResponse = is.readLine();
+            if (authResponse == null) {
+                return null;
+            }
+            show("Server response: " + authResponse);
+            String reply = is.readLine();
+            if (reply == null) {
+                return null;
+            }
+            if (!authResponse.equals("200 OK")) {
+                return authResponse;
+            }
+            show("Server response: " + reply);
+            return reply;
+        } catch (IOException e) {
+            showError("Error reading MSGSTORE response: " + e);
+            return null;
+        }
+    }
+
+
+    /**
+     * Interactive client over the binary protocol: the same commands as the text client,
+     * each sent as one request frame. MSGSTORE prompts for the message and sends both together
+     */
+    private static void runBinaryClient(String host) {
+        System.out.println("Connecting to server at " + host + ":" + SERVER_PORT + " (binary protocol)");
+        try (BinaryConnection connection = new BinaryConnection(host);
+             BufferedReader stdInput = new BufferedReader(new InputStreamReader(System.in))) {
+            String userInput;
+            System.out.print("Enter a command: ");
+            while ((userInput = stdInput.readLine()) != null) {
+                String[] parts = userInput.trim().split("\\s+");
+                int opcode = BinaryProtocol.opcode(parts[0]);
+                byte[] payload = new byte[0];
+                if (opcode < 0) {
+                    System.out.println("Not a valid command: " + parts[0]);
+                    System.out.print("Enter a command: ");
+                    continue;
+                } else if (opcode == BinaryProtocol.LOGIN) {
+                    if (parts.length != 3) {
+                        System.out.println("Usage: LOGIN <userId> <password>");
+                        System.out.print("Enter a command: ");
+                        continue;
+                    }
+                    payload = BinaryProtocol.loginPayload(parts[1], parts[2]);
+                } else if (opcode == BinaryProtocol.MSGSTORE) {
+                    System.out.print("Enter message to store: ");
+                    String message = stdInput.readLine();
+                    payload = message == null ? payload : message.getBytes(StandardCharsets.UTF_8);
+                } else if (opcode == BinaryProtocol.MSGLIST) {
+                    if (parts.length != 3 || !parts[1].matches("\\d{1,9}") || !parts[2].matches("\\d{1,9}")) {
+                        System.out.println("Usage: MSGLIST <offset> <count>");
+                        System.out.print("Enter a command: ");
+                        continue;
+                    }
+                    int listed = connection.list(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                        message -> System.out.println("  " + message));
+                    System.out.println(listed < 0 ? "Server response: " + describeStatus(-listed) : listed + " messages listed");
+                    System.out.print("Enter a command: ");
+                    continue;
+                } else if (opcode == BinaryProtocol.CURSOR && parts.length > 1) {
+                    if (parts.length != 2 || !parts[1].matches("\\d{1,9}")) {
+                        System.out.println("Usage: CURSOR [position]");
+                        System.out.print("Enter a command: ");
+                        continue;
+                    }
+                    payload = BinaryProtocol.cursorPayload(Integer.parseInt(parts[1]));
+                }
+
+                int status = connection.request(opcode, payload);
+                System.out.println("Server response: " + describeStatus(status));
+                if (connection.payloadLength() > 0) {
+                    String text = connection.payloadText();
+                    System.out.println(opcode == BinaryProtocol.MSGGET ? "Message of the day: " + text
+                        : opcode == BinaryProtocol.CURSOR ? "Next message: #" + text : text);
+                }
+                if (opcode == BinaryProtocol.QUIT || (opcode == BinaryProtocol.SHUTDOWN && status == 200)) {
+                    return;
+                }
+                if (opcode == BinaryProtocol.SUBSCRIBE && status == 200) {
+                    // Every further response is a pushed message, until the server closes the connection
+                    System.out.println("Waiting for new messages (Ctrl+C to stop)");
+                    try {
+                        int pushed;
+                        while ((pushed = connection.readResponse()) == 200) {
+                            System.out.println("New message: " + connection.payloadText());
+                        }
+                        // The server is shutting down
+                        System.out.println("Server response: " + describeStatus(pushed));
+                    } catch (EOFException e) {
+                        System.out.println("Server closed the connection");
+                    }
+                    return;
+                }
+                System.out.print("Enter a command: ");
+            }
+        } catch (IOException e) {
+            System.err.println("IOException: " + e);
+        }
+    }
+
+
+    // Text protocol status line for a binary status code
+    private static String describeStatus(int status) {
+        switch (status) {
+            case 200: return "200 OK";
+            case 300: return "300 message format error";
+            case 400: return "400 Bad Request";
+            case 401: return "401 You are not currently logged in, login first";
+            case 402: return "402 User not allowed to execute this command";
+            case 410: return "410 Wrong UserID or Password";
+            case 429: return "429 Too many requests, slow down";
+            case 500: return "500 Internal Server Error";
+            case 503: return "503 Server busy or shutting down";
+            default: return Integer.toString(status);
+        }
+    }
+
+
+    /**
+     * A connection that negotiated the binary protocol. Response payloads are read into one
+     * buffer that is reused for every response
+     */
+    static class BinaryConnection implements Closeable {
+        private Socket socket;
+        private DataOutputStream out;
+        private DataInputStream in;
+        private final int version;
+        private byte[] payload = new byte[256];
+        private int payloadLength;
+
+        // Listings are decompressed into this buffer, see list
+        private byte[] listingBuffer = new byte[8192];
+
+        BinaryConnection(String host) throws IOException {
+            this(host, COMPRESS ? BinaryProtocol.VERSION : 1);
+        }
+
+        /**
+         * Connects and negotiates the given protocol version. A server that only speaks an
+         * older version answers with it and closes, and is connected to again with that version
+         */
+        BinaryConnection(String host, int requested) throws IOException {
+            int version = requested;
+            while (true) {
+                socket = new Socket(host, SERVER_PORT);
+                socket.setTcpNoDelay(true);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out.write(BinaryProtocol.MAGIC);
+                out.write(version);
+                out.flush();
+                int magic = in.read();
+                int answered = in.read();
+                if (magic == '5') {
+                    // Turned away before the handshake with a "503" text line
+                    socket.close();
+                    throw new IOException("Server is busy, try again later");
+                }
+                if (magic == BinaryProtocol.MAGIC && answered == version) {
+                    break;
+                }
+                socket.close();
+                if (magic != BinaryProtocol.MAGIC || answered < 1 || answered > version) {
+                    throw new IOException("Server does not speak binary protocol version " + version);
+                }
+                version = answered;
+            }
+            this.version = version;
+        }
+
+        // Sends one request and waits for its response, returns the status code
+        int request(int opcode, byte[] requestPayload) throws IOException {
+            send(opcode, requestPayload);
+            flush();
+            return readResponse();
+        }
+
+        // Queues a request without flushing, for pipelining
+        void send(int opcode, byte[] requestPayload) throws IOException {
+            BinaryProtocol.writeRequest(out, opcode, requestPayload);
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        // Reads the next response, returns the status code
+        int readResponse() throws IOException {
+            int status = in.readUnsignedShort();
+            payloadLength = in.readInt();
+            if (payloadLength > payload.length) {
+                payload = new byte[Math.max(payloadLength, payload.length * 2)];
+            }
+            in.readFully(payload, 0, payloadLength);
+            return status;
+        }
+
+        /**
+         * Sends a MSGLIST request and hands each listed message to the consumer as its response
+         * arrives, up to the empty response that ends the listing
+         * Returns the number of messages, or the negated status code if the request was refused
+         */
+        int list(int offset, int count, Consumer<String> consumer) throws IOException {
+            int status = request(BinaryProtocol.MSGLIST, BinaryProtocol.listPayload(offset, count));
+            if (version >= BinaryProtocol.COMPRESSED_VERSION) {
+                return listCompressed(status, consumer);
+            }
+            int listed = 0;
+            while (status == 200 && payloadLength > 0) {
+                consumer.accept(payloadText());
+                listed++;
+                status = readResponse();
+            }
+            return status == 200 ? listed : -status;
+        }
+
+        /**
+         * Reads a compressed listing, given the status of its first response: every response up
+         * to the empty one is a chunk of per-message responses, inflated with one Inflater for
+         * the whole listing. Each chunk ends with a flush, so it inflates to whole responses
+         */
+        private int listCompressed(int status, Consumer<String> consumer) throws IOException {
+            Inflater inflater = new Inflater();
+            try {
+                int listed = 0;
+                while (status == 200 && payloadLength > 0) {
+                    inflater.setInput(payload, 0, payloadLength);
+                    int length = 0;
+                    try {
+                        int inflated;
+                        do {
+                            if (length == listingBuffer.length) {
+                                listingBuffer = Arrays.copyOf(listingBuffer, length * 2);
+                            }
+                            inflated = inflater.inflate(listingBuffer, length, listingBuffer.length - length);
+                            length += inflated;
+                        } while (inflated > 0);
+                    } catch (DataFormatException e) {
+                        throw new IOException("Corrupt compressed listing", e);
+                    }
+                    for (int position = 0; position + BinaryProtocol.RESPONSE_HEADER <= length; ) {
+                        int messageLength = BinaryProtocol.getInt(listingBuffer, position + 2);
+                        position += BinaryProtocol.RESPONSE_HEADER;
+                        consumer.accept(new String(listingBuffer, position, messageLength, StandardCharsets.UTF_8));
+                        position += messageLength;
+                        listed++;
+                    }
+                    status = readResponse();
+                }
+                return status == 200 ? listed : -status;
+            } finally {
+                inflater.end();
+            }
+        }
+
+        int payloadLength() {
+            return payloadLength;
+        }
+
+        String payloadText() {
+            return new String(payload, 0, payloadLength, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+
+    // Prints interactive output, unless running a load test
+    private static void show(String line) {
+        if (!quiet) {
+            System.out.println(line);
+        }
+    }
+
+    private static void showError(String line) {
+        if (!quiet) {
+            System.err.println(line);
+        }
+    }
+
+
+    /**
+     * Headless load test: LOAD_CONNECTIONS connections send the configured command mix at
+     * LOAD_RATE requests per second in total for LOAD_SECONDS, then report per command.
+     * Requests follow a fixed schedule (open loop): each latency is measured from the time the
+     * request was due, not when it was actually sent, so a stalled server shows up as latency
+     * instead of as fewer requests (coordinated omission)
+     */
+    private static void runLoadTest(String host, boolean binary) {
+        quiet = true;
+        LoadMix mix = LoadMix.parse(LOAD_MIX);
+        LoadStats stats = new LoadStats();
+        long interval = TimeUnit.SECONDS.toNanos(1) * LOAD_CONNECTIONS * Math.max(1, LOAD_BATCH) / Math.max(1, LOAD_RATE);
+        System.out.println("Load test against " + host + ":" + SERVER_PORT + ": " + LOAD_CONNECTIONS
+            + " connections, " + LOAD_RATE + " requests/s for " + LOAD_SECONDS + " s, mix " + LOAD_MIX
+            + (LOAD_BATCH > 1 ? ", " + LOAD_BATCH + " commands per batch" : "")
+            + (binary ? ", binary protocol" : ""));
+
+        // Connect and log in first, so setup is not part of the measurement
+        List<LoadConnection> connections = new ArrayList<>();
+        try {
+            for (int i = 0; i < LOAD_CONNECTIONS; i++) {
+                connections.add(new LoadConnection(host, binary));
+            }
+        } catch (IOException e) {
+            System.err.println("Couldn't open load test connection " + (connections.size() + 1) + ": " + e);
+            connections.forEach(LoadConnection::close);
+            return;
+        }
+
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long end = start + TimeUnit.SECONDS.toNanos(LOAD_SECONDS);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < connections.size(); i++) {
+            LoadConnection connection = connections.get(i);
+            // Spread the connections' schedules evenly over one interval
+            long first = start + interval * i / connections.size();
+            Thread thread = new Thread(() -> connection.run(first, interval, end, mix, stats), "load-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        stats.report(System.nanoTime() - start);
+    }
+
+
+    // Weighted choice of the next command
+    private static class LoadMix {
+        private final String[] commands;
+        private final int[] cumulativeWeights;
+
+        private LoadMix(String[] commands, int[] cumulativeWeights) {
+            this.commands = commands;
+            this.cumulativeWeights = cumulativeWeights;
+        }
+
+        static LoadMix parse(String mix) {
+            String[] entries = mix.split(",");
+            String[] commands = new String[entries.length];
+            int[] weights = new int[entries.length];
+            int total = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String[] pair = entries[i].trim().split(":");
+                commands[i] = pair[0].trim().toUpperCase();
+                if (!LoadStats.COMMANDS.contains(commands[i])) {
+                    throw new IllegalArgumentException("Unsupported command in load mix: " + commands[i]);
+                }
+                total += pair.length > 1 ? Integer.parseInt(pair[1].trim()) : 1;
+                weights[i] = total;
+            }
+            return new LoadMix(commands, weights);
+        }
+
+        String next() {
+            int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < commands.length; i++) {
+                if (pick < cumulativeWeights[i]) {
+                    return commands[i];
+                }
+            }
+            return commands[commands.length - 1];
+        }
+    }
+
+
+    // One connection of the load test, driven by its own thread, in either protocol
+    private static class LoadConnection {
+        private final Socket socket;
+        private final PrintStream os;
+        private final BufferedReader is;
+        private final BinaryConnection binary;
+        private final byte[] loginPayload = BinaryProtocol.loginPayload(LOAD_USER, LOAD_PASSWORD);
+
+        LoadConnection(String host, boolean useBinary) throws IOException {
+            if (useBinary) {
+                binary = new BinaryConnection(host);
+                socket = null;
+                os = null;
+                is = null;
+                if (binary.request(BinaryProtocol.LOGIN, loginPayload) != 200) {
+                    binary.close();
+                    throw new IOException("LOGIN " + LOAD_USER + " failed");
+                }
+                return;
+            }
+            binary = null;
+            socket = new Socket(host, SERVER_PORT);
+            socket.setTcpNoDelay(true);
+            os = new PrintStream(new BufferedOutputStream(socket.getOutputStream()), true);
+            is = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            os.println("LOGIN " + LOAD_USER + " " + LOAD_PASSWORD);
+            if (!"200 OK".equals(handleLoginResponse(is))) {
+                socket.close();
+                throw new IOException("LOGIN " + LOAD_USER + " failed");
+            }
+        }
+
+        void run(long first, long interval, long end, LoadMix mix, LoadStats stats) {
+            long sent = 0;
+            for (long due = first; due < end; due = first + ++sent * interval) {
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+
+                if (LOAD_BATCH > 1) {
+                    if (!requestBatch(mix, sent, due, stats)) {
+                        break; // Connection lost
+                    }
+                    continue;
+                }
+                String command = mix.next();
+                String status = request(command, sent);
+                stats.record(command, status, System.nanoTime() - due);
+                if (status == null) {
+                    break; // Connection lost
+                }
+            }
+            close();
+        }
+
+        // Sends LOAD_BATCH commands pipelined; each is timed from the batch's due time to the end of the batch
+        private boolean requestBatch(LoadMix mix, long sequence, long due, LoadStats stats) {
+            if (binary != null) {
+                return requestBinaryBatch(mix, sequence, due, stats);
+            }
+            List<String> commands = new ArrayList<>(LOAD_BATCH);
+            for (int i = 0; i < LOAD_BATCH; i++) {
+                String command = mix.next();
+                if (command.equals("LOGIN")) {
+                    command = "LOGIN " + LOAD_USER + " " + LOAD_PASSWORD;
+                } else if (command.equals("MSGSTORE")) {
+                    command = "MSGSTORE Load test message " + Thread.currentThread().getName() + "-" + sequence + "-" + i;
+                }
+                commands.add(command);
+            }
+            List<String> statuses = sendBatch(commands, is, os);
+            long latency = System.nanoTime() - due;
+            for (int i = 0; i < commands.size(); i++) {
+                String command = commands.get(i).split(" ")[0];
+                stats.record(command, i < statuses.size() ? statuses.get(i) : null, latency);
+            }
+            return statuses.size() == commands.size();
+        }
+
+        // The binary version of requestBatch
+        private boolean requestBinaryBatch(LoadMix mix, long sequence, long due, LoadStats stats) {
+            String[] commands = new String[LOAD_BATCH];
+            try {
+                for (int i = 0; i < LOAD_BATCH; i++) {
+                    commands[i] = mix.next();
+                    binary.send(BinaryProtocol.opcode(commands[i]), binaryPayload(commands[i], sequence + "-" + i));
+                }
+                binary.flush();
+                int[] statuses = new int[LOAD_BATCH];
+                for (int i = 0; i < LOAD_BATCH; i++) {
+                    statuses[i] = binary.readResponse();
+                }
+                long latency = System.nanoTime() - due;
+                for (int i = 0; i < LOAD_BATCH; i++) {
+                    stats.record(commands[i], statuses[i] == 200 ? "200 OK" : Integer.toString(statuses[i]), latency);
+                }
+                return true;
+            } catch (IOException e) {
+                long latency = System.nanoTime() - due;
+                for (String command : commands) {
+                    if (command != null) {
+                        stats.record(command, null, latency);
+                    }
+                }
+                return false;
+            }
+        }
+
+        private byte[] binaryPayload(String command, String sequence) {
+            switch (command) {
+                case "LOGIN":
+                    return loginPayload;
+                case "MSGSTORE":
+                    return ("Load test message " + Thread.currentThread().getName() + "-" + sequence).getBytes(StandardCharsets.UTF_8);
+                default:
+                    return new byte[0];
+            }
+        }
+
+        private String request(String command, long sequence) {
+            if (binary != null) {
+                try {
+                    int status = binary.request(BinaryProtocol.opcode(command), binaryPayload(command, Long.toString(sequence)));
+                    return status == 200 ? "200 OK" : Integer.toString(status);
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+            switch (command) {
+                case "MSGGET":
+                    os.println("MSGGET");
+                    return handleMsgGetResponse(is);
+                case "LOGIN":
+                    os.println("LOGIN " + LOAD_USER + " " + LOAD_PASSWORD);
+                    return handleLoginResponse(is);
+                case "MSGSTORE":
+                    os.println("MSGSTORE");
+                    return handleMsgStoreCommand(null, "Load test message " + Thread.currentThread().getName() + "-" + sequence, is, os);
+                case "LOGOUT":
+                    os.println("LOGOUT");
+                    return handleLogoutResponse(is);
+                default:
+                    throw new IllegalArgumentException(command);
+            }
+        }
+
+        void close() {
+            try {
+                if (binary != null) {
+                    binary.send(BinaryProtocol.QUIT, new byte[0]);
+                    binary.flush();
+                    binary.close();
+                    return;
+                }
+                os.println("QUIT");
+                socket.close();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+
+    // Per-command results of a load test, shared by all connections
+    private static class LoadStats {
+        static final List<String> COMMANDS = Arrays.asList("MSGGET", "LOGIN", "MSGSTORE", "LOGOUT");
+
+        private final Map<String, Metrics.Histogram> latencies = new HashMap<>();
+        private final Map<String, LongAdder> rejected = new HashMap<>();
+        private final Map<String, LongAdder> failed = new HashMap<>();
+
+        LoadStats() {
+            for (String command : COMMANDS) {
+                latencies.put(command, new Metrics.Histogram());
+                rejected.put(command, new LongAdder());
+                failed.put(command, new LongAdder());
+            }
+        }
+
+        // A null status means the connection failed; anything but "200 OK" is a rejection
+        void record(String command, String status, long latencyNanos) {
+            if (status == null) {
+                failed.get(command).increment();
+                return;
+            }
+            latencies.get(command).record(latencyNanos);
+            if (!status.equals("200 OK")) {
+                rejected.get(command).increment();
+            }
+        }
+
+        void report(long elapsedNanos) {
+            double seconds = elapsedNanos / 1e9;
+            long total = 0;
+            for (String command : COMMANDS) {
+                Metrics.Histogram histogram = latencies.get(command);
+                long count = histogram.getCount();
+                total += count;
+                if (count == 0 && failed.get(command).sum() == 0) {
+                    continue;
+                }
+                System.out.println(String.format(Locale.ROOT, "%-8s %9.1f/s rejected=%d failed=%d ", command,
+                    count / seconds, rejected.get(command).sum(), failed.get(command).sum())
+                    + histogram.describe(new StringBuilder()));
+            }
+            System.out.println(String.format(Locale.ROOT, "Total    %9.1f/s (target %d/s) over %.1f s",
+                total / seconds, LOAD_RATE, seconds));
+        }
+    }
+}
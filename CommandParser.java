@@ -0,0 +1,156 @@
+/*
+ * CommandParser.java
+ */
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits a received text line into words in place
+ * The line stays in the transport's buffer: the parser only records where each word starts
+ * and ends, and the command word is matched against the command names byte by byte, ignoring
+ * case, so parsing a line allocates nothing. Each session reuses one parser for all its lines;
+ * only the handlers that need a word or the whole line as a String (LOGIN, a MSGSTORE body)
+ * decode it
+ */
+final class CommandParser {
+
+    // Words whose position is recorded; longer lines are still counted
+    private static final int MAX_WORDS = 8;
+
+    // Command names, upper case, indexed by their binary protocol opcode
+    private static final byte[][] COMMANDS = new byte[BinaryProtocol.opcodeCount()][];
+    static {
+        for (int opcode = 1; opcode < COMMANDS.length; opcode++) {
+            COMMANDS[opcode] = BinaryProtocol.command(opcode).getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final int[] wordStart = new int[MAX_WORDS];
+    private final int[] wordEnd = new int[MAX_WORDS];
+    private byte[] line;
+    private int offset;
+    private int length;
+    private int wordCount;
+
+    /**
+     * Tokenizes bytes [offset, offset + length) of the array, a line without its terminator.
+     * Words are separated by runs of spaces, tabs and other control characters
+     */
+    void parse(byte[] line, int offset, int length) {
+        this.line = line;
+        this.offset = offset;
+        this.length = length;
+        wordCount = 0;
+        int end = offset + length;
+        int i = offset;
+        while (true) {
+            while (i < end && isSeparator(line[i])) {
+                i++;
+            }
+            if (i == end) {
+                return;
+            }
+            int start = i;
+            while (i < end && !isSeparator(line[i])) {
+                i++;
+            }
+            if (wordCount < MAX_WORDS) {
+                wordStart[wordCount] = start;
+                wordEnd[wordCount] = i;
+            }
+            wordCount++;
+        }
+    }
+
+    private static boolean isSeparator(byte b) {
+        // UTF-8 continuation and lead bytes are negative, so never separators
+        return b >= 0 && b <= ' ';
+    }
+
+
+    int wordCount() {
+        return wordCount;
+    }
+
+    boolean isBlank() {
+        return wordCount == 0;
+    }
+
+    /**
+     * Opcode of the command word, matched without regard to case, or -1 when the first word
+     * is not a command or the line is blank
+     */
+    int command() {
+        if (wordCount == 0) {
+            return -1;
+        }
+        int start = wordStart[0];
+        int wordLength = wordEnd[0] - start;
+        for (int opcode = 1; opcode < COMMANDS.length; opcode++) {
+            byte[] name = COMMANDS[opcode];
+            if (name.length == wordLength && matchesIgnoreCase(name, start)) {
+                return opcode;
+            }
+        }
+        return -1;
+    }
+
+    // Command names are letters only, and clearing bit 5 upper-cases an ASCII letter
+    // without turning any other byte into one
+    private boolean matchesIgnoreCase(byte[] name, int start) {
+        for (int i = 0; i < name.length; i++) {
+            if ((line[start + i] & 0xDF) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Decodes one word, 0 <= index < min(wordCount(), 8)
+     */
+    String word(int index) {
+        return new String(line, wordStart[index], wordEnd[index] - wordStart[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses one word as a non-negative decimal number without decoding it, 0 <= index <
+     * min(wordCount(), 8). Returns -1 when the word is not a number or does not fit in an int
+     */
+    int number(int index) {
+        int start = wordStart[index];
+        int end = wordEnd[index];
+        if (end - start > 10) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value <= Integer.MAX_VALUE ? (int) value : -1;
+    }
+
+    /**
+     * Decodes the whole line as received
+     */
+    String text() {
+        return new String(line, offset, length, StandardCharsets.UTF_8);
+    }
+
+    byte[] array() {
+        return line;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    int length() {
+        return length;
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * CompressedMessageStore.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.*;
+
+/**
+ * Message store that keeps messages in compressed blocks (-Dserver.store=compressed)
+ * Messages are grouped in blocks of a fixed number of messages, each compressed on its own
+ * with Deflater, so a read decompresses only the block of the message it wants; message i is
+ * in block i / blockMessages, so the block offsets are the whole index. Every block after the
+ * first is compressed with the first block's text as a preset dictionary, which gives small
+ * blocks of short, similar messages most of the ratio of compressing them all together.
+ * Messages that do not fill a block yet are kept on the heap and in their own journal, and
+ * become a block once there are enough of them. Recently read blocks are kept decompressed
+ * in a small cache that readers use without locking
+ *
+ * Data file: magic (4), version (4), messages per block (4), reserved (4), then blocks of
+ * [compressed length (4)][uncompressed length (4)][zlib data]. Uncompressed, a block is the
+ * offsets of its messages (messages per block + 1 ints, relative to the end of the offsets)
+ * followed by the UTF-8 messages
+ */
+class CompressedMessageStore implements MessageStore {
+
+    private static final int MAGIC = 0x4d4f5443; // "MOTC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    // Deflate only looks this far back, so a longer dictionary would not help
+    private static final int MAX_DICTIONARY = 32 * 1024;
+
+    private static final byte[] NEWLINE = { '\n' };
+
+    // Blocks and the messages after them, never modified once published
+    private static final class State {
+        // Data file offset of every block
+        final long[] blocks;
+        // Messages not in a block yet, with their pre-encoded MSGGET responses
+        final String[] tail;
+        final byte[][] tailResponses;
+        final int sealed;
+
+        State(long[] blocks, String[] tail, byte[][] tailResponses, int blockMessages) {
+            this.blocks = blocks;
+            this.tail = tail;
+            this.tailResponses = tailResponses;
+            this.sealed = blocks.length * blockMessages;
+        }
+
+        int size() {
+            return sealed + tail.length;
+        }
+    }
+
+    // A decompressed block in the cache
+    private static final class Block {
+        final int number;
+        final byte[] bytes;
+
+        Block(int number, byte[] bytes) {
+            this.number = number;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MessageJournal tailJournal;
+    private final int blockMessages;
+    private final boolean syncEachBatch;
+
+    // Offset of the first message in a decompressed block
+    private final int textStart;
+
+    // Direct-mapped: block n goes to slot n % cache length, replacing whatever was there
+    private final AtomicReferenceArray<Block> cache;
+
+    private volatile State state;
+
+    // End of the first block's text, the preset dictionary of all later blocks; null until there is one
+    private volatile byte[] dictionary;
+
+    private final Deflater deflater;
+    private long dataEnd;
+
+    private CompressedMessageStore(Path path, FileChannel channel, MessageJournal tailJournal, int blockMessages,
+            int cacheBlocks, int level, boolean syncEachBatch) {
+        this.path = path;
+        this.channel = channel;
+        this.tailJournal = tailJournal;
+        this.blockMessages = blockMessages;
+        this.syncEachBatch = syncEachBatch;
+        this.textStart = 4 * (blockMessages + 1);
+        this.cache = new AtomicReferenceArray<>(Math.max(1, cacheBlocks));
+        this.deflater = new Deflater(level);
+    }
+
+
+    // Check if the store's data file already exists
+    static boolean exists(String dataFile) {
+        return Files.exists(Paths.get(dataFile));
+    }
+
+
+    /**
+     * Opens the store, creating an empty one with blocks of the given number of messages if
+     * needed; an existing store keeps the block size it was created with. A block cut off by a
+     * crash is dropped: its messages are still in the tail journal, which is only shortened
+     * once a block is on disk. With syncEachBatch every append is forced to disk before it returns
+     */
+    static CompressedMessageStore open(String dataFile, String tailFile, int blockMessages, int cacheBlocks,
+            int level, MessageJournal.FsyncPolicy policy, long groupMillis) throws IOException {
+        Path path = Paths.get(dataFile);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() == 0) {
+                header.putInt(MAGIC).putInt(VERSION).putInt(blockMessages).putInt(0).flip();
+                channel.write(header, 0);
+                channel.force(false);
+            } else {
+                readFully(channel, header, 0);
+                if (header.getInt(0) != MAGIC) {
+                    throw new IOException("Not a compressed message file: " + path);
+                }
+                if (header.getInt(4) != VERSION) {
+                    throw new IOException("Unsupported compressed message file version " + header.getInt(4) + " in " + path);
+                }
+                blockMessages = header.getInt(8);
+            }
+
+            CompressedMessageStore store = new CompressedMessageStore(path, channel,
+                new MessageJournal(tailFile, policy, groupMillis), blockMessages, cacheBlocks, level,
+                policy == MessageJournal.FsyncPolicy.ALWAYS);
+            store.load();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Finds the blocks by walking their headers, checks that the last one is whole, reads the
+     * dictionary and replays the tail journal
+     */
+    private void load() throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        long size = channel.size();
+        long position = HEADER_SIZE;
+        long compressed = 0;
+        long uncompressed = 0;
+        while (position + BLOCK_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            long end = position + BLOCK_HEADER_SIZE + header.getInt(0);
+            if (header.getInt(0) <= 0 || end > size) {
+                break;
+            }
+            offsets.add(position);
+            compressed += header.getInt(0);
+            uncompressed += header.getInt(4);
+            position = end;
+        }
+        long[] blocks = offsets.stream().mapToLong(Long::longValue).toArray();
+
+        // Only the last block can have been cut off; the first is checked anyway for the dictionary
+        if (blocks.length > 0) {
+            byte[] first = readIntact(blocks[0]);
+            if (first == null) {
+                position = blocks[0];
+                blocks = new long[0];
+            } else {
+                dictionary = dictionaryOf(first);
+            }
+        }
+        if (blocks.length > 1 && readIntact(blocks[blocks.length - 1]) == null) {
+            position = blocks[blocks.length - 1];
+            blocks = Arrays.copyOf(blocks, blocks.length - 1);
+        }
+        if (position < size) {
+            Log.warn("Ignoring {} bytes of a torn block at the end of {} (offset {})", size - position, path, position);
+            channel.truncate(position);
+            channel.force(false);
+        }
+        dataEnd = position;
+        state = new State(blocks, new String[0], new byte[0][], blockMessages);
+
+        List<String> replayed = new ArrayList<>();
+        tailJournal.open(state.sealed, replayed);
+        publishTail(blocks, replayed);
+        if (uncompressed > 0) {
+            Log.info("Compressed blocks hold {} bytes of messages in {} bytes ({}%)",
+                uncompressed, compressed, 100 * compressed / uncompressed);
+        }
+        // A crash between writing a block and shortening the journal leaves enough to seal
+        sealFullBlocks();
+    }
+
+
+    @Override
+    public int size() {
+        return state.size();
+    }
+
+
+    @Override
+    public String get(int index) {
+        State current = state;
+        if (index >= current.sealed) {
+            return current.tail[index - current.sealed];
+        }
+        byte[] block = block(current, index / blockMessages);
+        int start = messageStart(block, index);
+        return new String(block, start, messageEnd(block, index) - start, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Writes the status line, the message straight from its decompressed block, and a newline
+     */
+    @Override
+    public void writeResponse(int index, Server.ResponseSink sink) {
+        State current = state;
+        if (index >= current.sealed) {
+            sink.write(current.tailResponses[index - current.sealed]);
+            return;
+        }
+        byte[] block = block(current, index / blockMessages);
+        int start = messageStart(block, index);
+        sink.write(RESPONSE_HEADER);
+        sink.write(block, start, messageEnd(block, index) - start);
+        sink.write(NEWLINE);
+    }
+
+
+    @Override
+    public void writeFrame(int index, Server.ResponseSink sink, byte[] header) {
+        State current = state;
+        byte[] bytes;
+        int start;
+        int length;
+        if (index >= current.sealed) {
+            bytes = current.tailResponses[index - current.sealed];
+            start = RESPONSE_HEADER.length;
+            length = bytes.length - RESPONSE_HEADER.length - 1;
+        } else {
+            bytes = block(current, index / blockMessages);
+            start = messageStart(bytes, index);
+            length = messageEnd(bytes, index) - start;
+        }
+        BinaryProtocol.putResponseHeader(header, 200, length);
+        sink.write(header);
+        sink.write(bytes, start, length);
+    }
+
+
+    @Override
+    public void writeLine(int index, Server.ResponseSink sink) {
+        State current = state;
+        byte[] bytes;
+        int start;
+        int length;
+        if (index >= current.sealed) {
+            bytes = current.tailResponses[index - current.sealed];
+            start = RESPONSE_HEADER.length;
+            length = bytes.length - RESPONSE_HEADER.length - 1;
+        } else {
+            bytes = block(current, index / blockMessages);
+            start = messageStart(bytes, index);
+            length = messageEnd(bytes, index) - start;
+        }
+        if (length > 0 && bytes[start] == '.') {
+            sink.write(DOT);
+        }
+        sink.write(bytes, start, length);
+        sink.write(NEWLINE);
+    }
+
+
+    /**
+     * Writes the batch to the tail journal and publishes it, then compresses the messages that
+     * fill a block and appends the block to the data file
+     */
+    @Override
+    public synchronized void append(List<String> messages) throws IOException {
+        State current = state;
+        tailJournal.append(current.size(), messages);
+        List<String> tail = new ArrayList<>(current.tail.length + messages.size());
+        tail.addAll(Arrays.asList(current.tail));
+        tail.addAll(messages);
+        publishTail(current.blocks, tail);
+        try {
+            sealFullBlocks();
+        } catch (IOException e) {
+            // The batch is safe in the tail journal; sealing is tried again with the next one
+            Log.warn("Could not write a compressed block to {}: {}", path, e);
+        }
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        tailJournal.close();
+        channel.force(false);
+        channel.close();
+        deflater.end();
+    }
+
+
+    /**
+     * Moves the first messages of the tail into blocks while there are enough of them. Each
+     * block is on disk before the journal drops its messages, and published after that
+     */
+    private void sealFullBlocks() throws IOException {
+        State current = state;
+        if (current.tail.length < blockMessages) {
+            return;
+        }
+        long[] blocks = current.blocks;
+        byte[] firstDictionary = dictionary;
+        long firstEnd = dataEnd;
+        int sealedTail = 0;
+        try {
+            while (current.tail.length - sealedTail >= blockMessages) {
+                byte[] text = encodeBlock(current.tail, sealedTail);
+                blocks = Arrays.copyOf(blocks, blocks.length + 1);
+                blocks[blocks.length - 1] = writeBlock(text);
+                if (dictionary == null) {
+                    dictionary = dictionaryOf(text);
+                }
+                sealedTail += blockMessages;
+            }
+            long start = System.nanoTime();
+            channel.force(false);
+            if (syncEachBatch) {
+                Metrics.FSYNC.record(System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            // Leave no block behind that the published state does not have
+            channel.truncate(firstEnd);
+            dataEnd = firstEnd;
+            dictionary = firstDictionary;
+            throw e;
+        }
+        tailJournal.truncateBefore((long) blocks.length * blockMessages);
+        publishTail(blocks, Arrays.asList(current.tail).subList(sealedTail, current.tail.length));
+    }
+
+
+    // Publishes the given blocks with the messages after them
+    private void publishTail(long[] blocks, List<String> tail) {
+        String[] messages = tail.toArray(new String[0]);
+        byte[][] responses = new byte[messages.length][];
+        State current = state;
+        int kept = current.blocks.length == blocks.length ? Math.min(current.tail.length, messages.length) : 0;
+        // The responses of messages already in the tail are reused
+        System.arraycopy(current.tailResponses, 0, responses, 0, kept);
+        for (int i = kept; i < messages.length; i++) {
+            responses[i] = MessageStore.encodeResponse(messages[i]);
+        }
+        state = new State(blocks, messages, responses, blockMessages);
+    }
+
+
+    // Uncompressed block of the blockMessages messages starting at the given one
+    private byte[] encodeBlock(String[] messages, int first) {
+        byte[][] encoded = new byte[blockMessages][];
+        int length = textStart;
+        for (int i = 0; i < blockMessages; i++) {
+            encoded[i] = messages[first + i].getBytes(StandardCharsets.UTF_8);
+            length += encoded[i].length;
+        }
+        ByteBuffer block = ByteBuffer.allocate(length);
+        int offset = 0;
+        for (byte[] message : encoded) {
+            block.putInt(offset);
+            offset += message.length;
+        }
+        block.putInt(offset);
+        for (byte[] message : encoded) {
+            block.put(message);
+        }
+        return block.array();
+    }
+
+
+    /**
+     * Compresses a block and appends it to the data file
+     * Returns the block's offset
+     */
+    private long writeBlock(byte[] block) throws IOException {
+        deflater.reset();
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(block);
+        deflater.finish();
+        byte[] out = new byte[BLOCK_HEADER_SIZE + block.length / 2 + 64];
+        int length = BLOCK_HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        ByteBuffer record = ByteBuffer.wrap(out, 0, length);
+        record.putInt(0, length - BLOCK_HEADER_SIZE).putInt(4, block.length);
+
+        long offset = dataEnd;
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        dataEnd += length;
+        return offset;
+    }
+
+
+    /**
+     * Returns a block decompressed, from the cache or read and decompressed into it
+     */
+    private byte[] block(State current, int number) {
+        int slot = number % cache.length();
+        Block cached = cache.get(slot);
+        if (cached != null && cached.number == number) {
+            return cached.bytes;
+        }
+        byte[] bytes = readBlock(current.blocks[number]);
+        cache.set(slot, new Block(number, bytes));
+        return bytes;
+    }
+
+
+    // Reads and decompresses the block at the given offset, null if it is torn or corrupt
+    private byte[] readIntact(long offset) {
+        try {
+            return readBlock(offset);
+        } catch (UncheckedIOException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Reads and decompresses the block at the given offset
+     * Corrupt blocks are thrown as UncheckedIOException, like write errors of a ResponseSink
+     */
+    private byte[] readBlock(long offset) {
+        Inflater inflater = new Inflater();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            readFully(channel, header, offset);
+            byte[] compressed = new byte[header.getInt(0)];
+            readFully(channel, ByteBuffer.wrap(compressed), offset + BLOCK_HEADER_SIZE);
+            byte[] block = new byte[header.getInt(4)];
+            inflater.setInput(compressed);
+            int length = 0;
+            while (length < block.length) {
+                int inflated = inflater.inflate(block, length, block.length - length);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new IOException("Truncated block at offset " + offset + " of " + path);
+                    }
+                }
+                length += inflated;
+            }
+            return block;
+        } catch (DataFormatException e) {
+            throw new UncheckedIOException(new IOException("Corrupt block at offset " + offset + " of " + path, e));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+
+    private int messageStart(byte[] block, int index) {
+        return textStart + getInt(block, 4 * (index % blockMessages));
+    }
+
+    private int messageEnd(byte[] block, int index) {
+        return textStart + getInt(block, 4 * (index % blockMessages + 1));
+    }
+
+    // The end of a block's text, the part deflate can refer back to
+    private byte[] dictionaryOf(byte[] block) {
+        int start = Math.max(textStart, block.length - MAX_DICTIONARY);
+        return Arrays.copyOfRange(block, start, block.length);
+    }
+
+    private static int getInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+        }
+    }
+}
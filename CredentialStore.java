@@ -0,0 +1,23 @@
+/*
+ * CredentialStore.java
+ */
+
+/**
+ * Source of truth for LOGIN
+ * Implementations may be slow on purpose (key derivation), so the server runs verify on its
+ * authentication executor rather than on I/O threads, and asks isCached first to answer
+ * repeated logins without going there
+ */
+interface CredentialStore {
+
+    // True if the password is the user's; false for a wrong password or an unknown user
+    boolean verify(String userId, String password);
+
+    // True if the credentials are known to be valid without the full check, e.g. from a cache
+    default boolean isCached(String userId, String password) {
+        return false;
+    }
+
+    // Number of accounts
+    int size();
+}
@@ -0,0 +1,228 @@
+/*
+ * GroupCommitter.java
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.Consumer;
+
+/**
+ * Batches concurrent MSGSTOREs into one store write and one fsync
+ * Sessions queue their message and get a future; a single writer thread takes everything
+ * queued (up to the batch limit, optionally waiting a little for more), appends it to the
+ * store in one batch, which writes, syncs and publishes it to MSGGET readers, and then
+ * completes the futures. Being the only writer of its store it also defines the order of the messages,
+ * and it hands every committed batch to a listener in that order
+ */
+class GroupCommitter {
+
+    // A message waiting to be committed
+    private static class PendingStore {
+        final String message;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        final long queuedAt = System.nanoTime();
+
+        PendingStore(String message) {
+            this.message = message;
+        }
+    }
+
+    // Marks the end of the queue at shutdown
+    private static final PendingStore STOP = new PendingStore(null);
+
+    private final MessageStore store;
+    private final Consumer<List<String>> onCommit;
+    private final int maxBatch;
+    private final long maxWaitNanos;
+    private final BlockingQueue<PendingStore> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    // Guarded by this, see submit and stop
+    private boolean accepting = true;
+
+    // Commit statistics, only written by the writer thread
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    // Batch size histogram, bucket i counts batches of 2^i up to 2^(i+1)-1 messages
+    private final AtomicLongArray batchSizes = new AtomicLongArray(16);
+
+    GroupCommitter(MessageStore store, int maxBatch, long maxWaitMicros, Consumer<List<String>> onCommit) {
+        this.store = store;
+        this.onCommit = onCommit;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.writer = new Thread(this::run, "group-commit");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+
+    /**
+     * Queues a message; the future completes once it is stored and visible to MSGGET
+     * Synchronized with stop, so every accepted message is queued before the stop marker and
+     * is committed by the writer's last batches rather than left waiting forever
+     */
+    synchronized CompletableFuture<Void> submit(String message) {
+        PendingStore pending = new PendingStore(message);
+        if (!accepting) {
+            pending.done.completeExceptionally(new IOException("Server is shutting down"));
+            return pending.done;
+        }
+        queue.add(pending);
+        return pending.done;
+    }
+
+
+    /**
+     * Stops taking messages; the writer commits everything already queued and exits without
+     * being waited for, so several writers can finish their last batches at the same time
+     */
+    synchronized void stop() {
+        if (accepting) {
+            accepting = false;
+            queue.add(STOP);
+        }
+    }
+
+
+    /**
+     * Commits everything already queued and stops the writer thread
+     */
+    void close() {
+        stop();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void run() {
+        List<PendingStore> batch = new ArrayList<>(maxBatch);
+        List<String> batchMessages = new ArrayList<>(maxBatch);
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, maxBatch - batch.size());
+
+                // Optionally give concurrent writers a moment to join this batch
+                long deadline = System.nanoTime() + maxWaitNanos;
+                while (batch.size() < maxBatch && maxWaitNanos > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingStore next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    queue.drainTo(batch, maxBatch - batch.size());
+                }
+            } catch (InterruptedException e) {
+                stopping = true;
+            }
+
+            if (batch.remove(STOP)) {
+                stopping = true;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            for (PendingStore pending : batch) {
+                batchMessages.add(pending.message);
+            }
+            commit(batch, batchMessages);
+            batch.clear();
+            batchMessages.clear();
+        }
+
+        // Nothing can follow the stop marker, but a writer that was interrupted stops early
+        PendingStore pending;
+        while ((pending = queue.poll()) != null) {
+            pending.done.completeExceptionally(new IOException("Server is shutting down"));
+        }
+    }
+
+
+    private void commit(List<PendingStore> batch, List<String> batchMessages) {
+        long start = System.nanoTime();
+        try {
+            store.append(batchMessages);
+            Metrics.STORE_WRITE.record(System.nanoTime() - start);
+        } catch (IOException e) {
+            for (PendingStore pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+            return;
+        }
+
+        long now = System.nanoTime();
+        for (PendingStore pending : batch) {
+            long latency = now - pending.queuedAt;
+            totalLatencyNanos.addAndGet(latency);
+            if (latency > maxLatencyNanos.get()) {
+                maxLatencyNanos.set(latency);
+            }
+            pending.done.complete(null);
+        }
+        try {
+            onCommit.accept(batchMessages);
+        } catch (RuntimeException e) {
+            Log.warn("Error publishing committed messages: {}", e);
+        }
+
+        int size = batch.size();
+        batches.incrementAndGet();
+        messages.addAndGet(size);
+        if (size > largestBatch.get()) {
+            largestBatch.set(size);
+        }
+        batchSizes.incrementAndGet(Math.min(31 - Integer.numberOfLeadingZeros(size), batchSizes.length() - 1));
+    }
+
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    long getMessages() {
+        return messages.get();
+    }
+
+    long getLargestBatch() {
+        return largestBatch.get();
+    }
+
+    // Average time from submit to commit, in microseconds
+    long getAverageLatencyMicros() {
+        long committed = messages.get();
+        return committed == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.get() / committed);
+    }
+
+    long getMaxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxLatencyNanos.get());
+    }
+
+
+    /**
+     * One-line summary of the commit counters
+     */
+    String describe() {
+        StringBuilder sizes = new StringBuilder();
+        for (int i = 0; i < batchSizes.length(); i++) {
+            long count = batchSizes.get(i);
+            if (count > 0) {
+                sizes.append(sizes.length() == 0 ? "" : " ").append(1 << i).append("+:").append(count);
+            }
+        }
+        return "Group commit: " + getBatches() + " batches, " + getMessages() + " messages, largest batch "
+            + getLargestBatch() + ", latency avg " + getAverageLatencyMicros() + " us max " + getMaxLatencyMicros()
+            + " us, batch sizes [" + sizes + "]";
+    }
+}
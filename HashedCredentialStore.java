@@ -0,0 +1,143 @@
+/*
+ * HashedCredentialStore.java
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.security.spec.InvalidKeySpecException;
+import java.util.*;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Accounts with salted PBKDF2 password hashes, in a hash map keyed by user id
+ * Users file format, one account per line: userId:iterations:salt:hash, with salt and hash in
+ * Base64. Blank lines and lines starting with '#' are ignored. To print the line for an account:
+ *   java HashedCredentialStore <userId> <password>
+ * Hashes are compared in constant time, and an unknown user id is checked against a dummy
+ * account so it takes as long as a wrong password
+ */
+final class HashedCredentialStore implements CredentialStore {
+
+    // Work factor for newly hashed passwords (-Dserver.auth.iterations=N)
+    static final int DEFAULT_ITERATIONS = Integer.getInteger("server.auth.iterations", 100_000);
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BYTES = 32;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final class Account {
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Account(int iterations, byte[] salt, byte[] hash) {
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+
+    private final Map<String, Account> accounts;
+    private final Account dummy;
+
+    private HashedCredentialStore(Map<String, Account> accounts) {
+        this.accounts = accounts;
+        this.dummy = hash("", DEFAULT_ITERATIONS);
+    }
+
+
+    /**
+     * Reads a users file
+     */
+    static HashedCredentialStore load(Path file) throws IOException {
+        Map<String, Account> accounts = new HashMap<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split(":");
+            try {
+                if (fields.length != 4) {
+                    throw new IllegalArgumentException("expected userId:iterations:salt:hash");
+                }
+                Base64.Decoder base64 = Base64.getDecoder();
+                accounts.put(fields[0], new Account(Integer.parseInt(fields[1]), base64.decode(fields[2]), base64.decode(fields[3])));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Bad account on line " + lineNumber + " of " + file + ": " + e.getMessage());
+            }
+        }
+        return new HashedCredentialStore(accounts);
+    }
+
+    /**
+     * Hashes {userId, password} pairs given in plain text
+     */
+    static HashedCredentialStore of(String[][] users) {
+        Map<String, Account> accounts = new HashMap<>();
+        for (String[] user : users) {
+            accounts.put(user[0], hash(user[1], DEFAULT_ITERATIONS));
+        }
+        return new HashedCredentialStore(accounts);
+    }
+
+
+    @Override
+    public boolean verify(String userId, String password) {
+        Account account = accounts.get(userId);
+        if (account == null) {
+            derive(password, dummy);
+            return false;
+        }
+        return MessageDigest.isEqual(derive(password, account), account.hash);
+    }
+
+    @Override
+    public int size() {
+        return accounts.size();
+    }
+
+
+    private static Account hash(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        return new Account(iterations, salt, derive(password, salt, iterations, HASH_BYTES));
+    }
+
+    private static byte[] derive(String password, Account account) {
+        return derive(password, account.salt, account.iterations, account.hash.length);
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations, int length) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+
+    /**
+     * Prints the users file line for an account
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: java HashedCredentialStore <userId> <password>");
+            System.exit(1);
+        }
+        Account account = hash(args[1], DEFAULT_ITERATIONS);
+        Base64.Encoder base64 = Base64.getEncoder();
+        System.out.println(args[0] + ":" + account.iterations + ":" + base64.encodeToString(account.salt)
+            + ":" + base64.encodeToString(account.hash));
+    }
+}
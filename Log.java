@@ -0,0 +1,323 @@
+/*
+ * Log.java
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous server log
+ * Logging threads only claim a preallocated slot in a lock-free ring buffer and store the
+ * level, time, thread, template and arguments; a background thread formats the entries and
+ * writes them to the log file (or stdout) in batches. Messages below the configured level
+ * return before anything is built, and when the ring is full messages are dropped and counted
+ * instead of making the caller wait
+ *
+ * Templates use "{}" for each argument: Log.info("User {} logged in", user)
+ */
+final class Log {
+
+    enum Level { TRACE, DEBUG, INFO, WARN, ERROR, OFF }
+
+    // Lowest level that is logged (-Dserver.log.level=trace|debug|info|warn|error|off)
+    private static final Level LEVEL = Level.valueOf(System.getProperty("server.log.level", "info").toUpperCase());
+
+    // Log file, stdout when not set (-Dserver.log.file=...)
+    private static final String LOG_FILE = System.getProperty("server.log.file");
+
+    // Number of ring slots, rounded up to a power of two (-Dserver.log.bufferSize=N)
+    private static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("server.log.bufferSize", 8192) - 1)) << 1;
+    private static final int MASK = CAPACITY - 1;
+
+    // Most entries formatted before the writer is flushed
+    private static final int MAX_BATCH = 1024;
+
+    // How long the drain thread sleeps when the ring is empty
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    // A ring entry. sequence == position: free for the producer claiming that position,
+    // sequence == position + 1: filled and ready for the drain thread
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        long time;
+        String thread;
+        String template;
+        Object arg0;
+        Object arg1;
+        Object arg2;
+        int argCount;
+    }
+
+    private static final Slot[] SLOTS = new Slot[CAPACITY];
+
+    // Next position to claim (producers) and to drain (drain thread only)
+    private static final AtomicLong TAIL = new AtomicLong();
+    private static long head;
+
+    private static final LongAdder DROPPED = new LongAdder();
+    private static final LongAdder WRITTEN = new LongAdder();
+
+    private static volatile boolean closed;
+    private static final Thread DRAINER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            SLOTS[i] = new Slot();
+            SLOTS[i].sequence = i;
+        }
+        DRAINER = new Thread(Log::drain, "log-writer");
+        DRAINER.setDaemon(true);
+        DRAINER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::close, "log-shutdown"));
+    }
+
+    private Log() {
+    }
+
+
+    static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) >= 0;
+    }
+
+    static boolean isTraceEnabled() {
+        return isEnabled(Level.TRACE);
+    }
+
+    static boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+
+    static void trace(String message) {
+        if (isEnabled(Level.TRACE)) log(Level.TRACE, message, 0, null, null, null);
+    }
+
+    static void trace(String template, Object arg) {
+        if (isEnabled(Level.TRACE)) log(Level.TRACE, template, 1, arg, null, null);
+    }
+
+    static void debug(String message) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, message, 0, null, null, null);
+    }
+
+    static void debug(String template, Object arg) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, template, 1, arg, null, null);
+    }
+
+    static void debug(String template, Object arg0, Object arg1) {
+        if (isEnabled(Level.DEBUG)) log(Level.DEBUG, template, 2, arg0, arg1, null);
+    }
+
+    static void info(String message) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, message, 0, null, null, null);
+    }
+
+    static void info(String template, Object arg) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, template, 1, arg, null, null);
+    }
+
+    static void info(String template, Object arg0, Object arg1) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, template, 2, arg0, arg1, null);
+    }
+
+    static void info(String template, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(Level.INFO)) log(Level.INFO, template, 3, arg0, arg1, arg2);
+    }
+
+    static void warn(String message) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, message, 0, null, null, null);
+    }
+
+    static void warn(String template, Object arg) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, template, 1, arg, null, null);
+    }
+
+    static void warn(String template, Object arg0, Object arg1) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, template, 2, arg0, arg1, null);
+    }
+
+    static void warn(String template, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(Level.WARN)) log(Level.WARN, template, 3, arg0, arg1, arg2);
+    }
+
+    static void error(String message) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, message, 0, null, null, null);
+    }
+
+    static void error(String template, Object arg) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, template, 1, arg, null, null);
+    }
+
+    static void error(String template, Object arg0, Object arg1) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, template, 2, arg0, arg1, null);
+    }
+
+    static void error(String template, Object arg0, Object arg1, Object arg2) {
+        if (isEnabled(Level.ERROR)) log(Level.ERROR, template, 3, arg0, arg1, arg2);
+    }
+
+
+    // Messages dropped because the ring was full
+    static long getDropped() {
+        return DROPPED.sum();
+    }
+
+    // Messages written to the log
+    static long getWritten() {
+        return WRITTEN.sum();
+    }
+
+
+    /**
+     * Writes everything already logged and stops the drain thread
+     */
+    static void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(DRAINER);
+        try {
+            DRAINER.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Claims a slot and fills it, or counts the message as dropped if the ring is full
+     */
+    private static void log(Level level, String template, int argCount, Object arg0, Object arg1, Object arg2) {
+        long position = TAIL.get();
+        Slot slot;
+        while (true) {
+            slot = SLOTS[(int) position & MASK];
+            long difference = slot.sequence - position;
+            if (difference == 0) {
+                if (TAIL.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = TAIL.get();
+            } else if (difference < 0) {
+                // The drain thread has not freed this slot yet
+                DROPPED.increment();
+                return;
+            } else {
+                position = TAIL.get();
+            }
+        }
+
+        slot.level = level;
+        slot.time = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.template = template;
+        slot.argCount = argCount;
+        slot.arg0 = arg0;
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.sequence = position + 1;
+    }
+
+
+    private static void drain() {
+        Writer out = openWriter();
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        while (true) {
+            boolean stopping = closed;
+            int written = 0;
+            try {
+                Slot slot;
+                while (written < MAX_BATCH && (slot = SLOTS[(int) head & MASK]).sequence == head + 1) {
+                    line.setLength(0);
+                    format(slot, line);
+                    out.append(line);
+                    slot.template = null;
+                    slot.arg0 = slot.arg1 = slot.arg2 = null;
+                    slot.sequence = head + CAPACITY;
+                    head++;
+                    written++;
+                }
+
+                long drops = DROPPED.sum();
+                if (drops != reportedDrops) {
+                    line.setLength(0);
+                    appendPrefix(line, System.currentTimeMillis(), Level.WARN, "log-writer");
+                    line.append("Log buffer full, dropped ").append(drops - reportedDrops).append(" messages\n");
+                    out.append(line);
+                    reportedDrops = drops;
+                }
+
+                if (written > 0) {
+                    WRITTEN.add(written);
+                }
+                if (written < MAX_BATCH) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                // Nowhere left to report it; keep draining so logging threads never fill up and stall
+                System.err.println("Error writing server log: " + e);
+            }
+
+            if (written == 0) {
+                if (stopping) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+        try {
+            out.flush();
+            if (LOG_FILE != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing server log: " + e);
+        }
+    }
+
+
+    private static Writer openWriter() {
+        OutputStream stream = new FileOutputStream(FileDescriptor.out);
+        if (LOG_FILE != null) {
+            try {
+                stream = new FileOutputStream(LOG_FILE, true);
+            } catch (IOException e) {
+                System.err.println("Error opening log file " + LOG_FILE + ", logging to stdout: " + e);
+            }
+        }
+        return new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+
+    // "<time> <LEVEL> [<thread>] <message>" with each {} replaced by the next argument
+    private static void format(Slot slot, StringBuilder line) {
+        appendPrefix(line, slot.time, slot.level, slot.thread);
+        String template = slot.template;
+        int arg = 0;
+        int start = 0;
+        int placeholder;
+        while (arg < slot.argCount && (placeholder = template.indexOf("{}", start)) >= 0) {
+            line.append(template, start, placeholder);
+            line.append(arg == 0 ? slot.arg0 : arg == 1 ? slot.arg1 : slot.arg2);
+            start = placeholder + 2;
+            arg++;
+        }
+        line.append(template, start, template.length()).append('\n');
+    }
+
+    private static void appendPrefix(StringBuilder line, long time, Level level, String thread) {
+        TIME_FORMAT.formatTo(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()), line);
+        line.append(' ').append(level).append(level.name().length() == 4 ? "  [" : " [");
+        line.append(thread.isEmpty() ? "virtual" : thread).append("] ");
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * MappedMessageStore.java
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Message store backed by memory-mapped files (-Dserver.store=mapped)
+ * The data file holds [length][MSGGET response] records, where the response is "200 OK",
+ * the UTF-8 message and newlines, ready to be sent with transferTo. The index file holds a
+ * header followed by the data offset of every message. Both are mapped in fixed-size chunks,
+ * so opening the store only reads the header, a read decodes just the message it returns,
+ * and the heap does not grow with the number of messages
+ */
+class MappedMessageStore implements MessageStore {
+
+    private static final int MAGIC = 0x4d4f5444; // "MOTD"
+    private static final int VERSION = 2;
+
+    // Index header: magic (4), version (4), message count (8), end of data (8), rest reserved
+    private static final int HEADER_SIZE = 4096;
+    private static final int COUNT_OFFSET = 8;
+    private static final int DATA_END_OFFSET = 16;
+
+    // Records never cross a data chunk, so a message can be at most one chunk long
+    private static final int DATA_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int INDEX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private final MappedFile data;
+    private final MappedFile index;
+    private final boolean syncEachBatch;
+
+    // Published after the records and index entries are written, so readers never see partial messages
+    private volatile int count;
+    private long dataEnd;
+
+    private MappedMessageStore(MappedFile data, MappedFile index, boolean syncEachBatch) throws IOException {
+        this.data = data;
+        this.index = index;
+        this.syncEachBatch = syncEachBatch;
+
+        if (index.getInt(0) != MAGIC) {
+            throw new IOException("Not a message index file: " + index.path);
+        }
+        if (index.getInt(4) != VERSION) {
+            throw new IOException("Unsupported message index version " + index.getInt(4) + " in " + index.path);
+        }
+        long storedCount = index.getLong(COUNT_OFFSET);
+        if (storedCount > Integer.MAX_VALUE) {
+            throw new IOException("Too many messages in " + index.path);
+        }
+        count = (int) storedCount;
+        dataEnd = index.getLong(DATA_END_OFFSET);
+    }
+
+
+    // Check if the store's index file already exists
+    static boolean exists(String indexFile) {
+        return Files.exists(Paths.get(indexFile));
+    }
+
+
+    /**
+     * Opens the store, creating empty files if needed
+     * With syncEachBatch every append is forced to disk before it returns
+     */
+    static MappedMessageStore open(String dataFile, String indexFile, boolean syncEachBatch) throws IOException {
+        boolean created = !exists(indexFile);
+        MappedFile data = new MappedFile(Paths.get(dataFile), DATA_CHUNK_SIZE);
+        MappedFile index = new MappedFile(Paths.get(indexFile), INDEX_CHUNK_SIZE);
+        if (created) {
+            index.putInt(0, MAGIC);
+            index.putInt(4, VERSION);
+            index.putLong(COUNT_OFFSET, 0);
+            index.putLong(DATA_END_OFFSET, 0);
+            index.force();
+        }
+        return new MappedMessageStore(data, index, syncEachBatch);
+    }
+
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+
+    /**
+     * Decodes the message at the given position straight from the mapped data file
+     */
+    @Override
+    public String get(int position) {
+        long offset = index.getLong(HEADER_SIZE + 8L * position);
+        int length = data.getInt(offset);
+        byte[] bytes = new byte[length - RESPONSE_HEADER.length - 1];
+        data.get(offset + 4 + RESPONSE_HEADER.length, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * Sends the stored response straight from the data file
+     */
+    @Override
+    public void writeResponse(int position, Server.ResponseSink sink) {
+        long offset = index.getLong(HEADER_SIZE + 8L * position);
+        sink.transferFrom(data.channel, offset + 4, data.getInt(offset));
+    }
+
+
+    /**
+     * Sends a frame header, then the message bytes of the stored response from the data file
+     */
+    @Override
+    public void writeFrame(int position, Server.ResponseSink sink, byte[] header) {
+        long offset = index.getLong(HEADER_SIZE + 8L * position);
+        int length = data.getInt(offset) - RESPONSE_HEADER.length - 1;
+        BinaryProtocol.putResponseHeader(header, 200, length);
+        sink.write(header);
+        sink.transferFrom(data.channel, offset + 4 + RESPONSE_HEADER.length, length);
+    }
+
+
+    /**
+     * Sends the message and its newline from the stored response as a listing line
+     */
+    @Override
+    public void writeLine(int position, Server.ResponseSink sink) {
+        long offset = index.getLong(HEADER_SIZE + 8L * position);
+        long start = offset + 4 + RESPONSE_HEADER.length;
+        if (data.get(start) == '.') {
+            sink.write(DOT);
+        }
+        sink.transferFrom(data.channel, start, data.getInt(offset) - RESPONSE_HEADER.length);
+    }
+
+
+    /**
+     * Writes the records and index entries, then publishes the new count in the header.
+     * A crash before the header update leaves the previous count, so partial batches are ignored
+     */
+    @Override
+    public synchronized void append(List<String> messages) throws IOException {
+        int newCount = count;
+        for (String message : messages) {
+            byte[] bytes = MessageStore.encodeResponse(message);
+            int recordSize = 4 + bytes.length;
+            if (recordSize > DATA_CHUNK_SIZE) {
+                throw new IOException("Message too large for the mapped store: " + bytes.length + " bytes");
+            }
+            // Start a new chunk rather than split a record across two
+            long chunkLeft = DATA_CHUNK_SIZE - (dataEnd % DATA_CHUNK_SIZE);
+            if (recordSize > chunkLeft) {
+                dataEnd += chunkLeft;
+            }
+            data.putInt(dataEnd, bytes.length);
+            data.put(dataEnd + 4, bytes);
+            index.putLong(HEADER_SIZE + 8L * newCount, dataEnd);
+            dataEnd += recordSize;
+            newCount++;
+        }
+
+        long start = System.nanoTime();
+        if (syncEachBatch) {
+            data.force();
+            index.force();
+        }
+        index.putLong(DATA_END_OFFSET, dataEnd);
+        index.putLong(COUNT_OFFSET, newCount);
+        if (syncEachBatch) {
+            index.force();
+            Metrics.FSYNC.record(System.nanoTime() - start);
+        }
+        count = newCount;
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        data.force();
+        index.force();
+        data.close();
+        index.close();
+    }
+
+
+    /**
+     * A file mapped in fixed-size chunks that are added as the file grows
+     * Values written through putInt/putLong/put must not cross a chunk boundary
+     */
+    private static class MappedFile {
+        private final Path path;
+        private final FileChannel channel;
+        private final int chunkSize;
+
+        // Mapped chunks, replaced by a longer copy when a chunk is added
+        private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+        MappedFile(Path path, int chunkSize) throws IOException {
+            this.path = path;
+            this.chunkSize = chunkSize;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            long size = channel.size();
+            int existing = (int) ((size + chunkSize - 1) / chunkSize);
+            for (int i = 0; i < Math.max(1, existing); i++) {
+                addChunk();
+            }
+        }
+
+        int getInt(long position) {
+            return chunk(position).getInt(offsetInChunk(position));
+        }
+
+        long getLong(long position) {
+            return chunk(position).getLong(offsetInChunk(position));
+        }
+
+        byte get(long position) {
+            return chunk(position).get(offsetInChunk(position));
+        }
+
+        void get(long position, byte[] dst) {
+            chunk(position).get(offsetInChunk(position), dst);
+        }
+
+        void putInt(long position, int value) throws IOException {
+            writableChunk(position).putInt(offsetInChunk(position), value);
+        }
+
+        void putLong(long position, long value) throws IOException {
+            writableChunk(position).putLong(offsetInChunk(position), value);
+        }
+
+        void put(long position, byte[] src) throws IOException {
+            writableChunk(position).put(offsetInChunk(position), src);
+        }
+
+        void force() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+
+        private MappedByteBuffer chunk(long position) {
+            return chunks[(int) (position / chunkSize)];
+        }
+
+        private int offsetInChunk(long position) {
+            return (int) (position % chunkSize);
+        }
+
+        // Only the appending thread maps new chunks
+        private MappedByteBuffer writableChunk(long position) throws IOException {
+            while (position / chunkSize >= chunks.length) {
+                addChunk();
+            }
+            return chunk(position);
+        }
+
+        private void addChunk() throws IOException {
+            MappedByteBuffer[] current = chunks;
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_WRITE, (long) current.length * chunkSize, chunkSize);
+            MappedByteBuffer[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = chunk;
+            chunks = grown;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * MessageBoard.java
+ */
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * In-memory message store: all messages on the heap, persisted through the journal
+ * Readers never lock: they load the current snapshot, which is never modified once
+ * published. Writers copy it, append, and publish the new snapshot with a compare-and-set,
+ * so a reader always sees a complete, immutable set of messages and their encoded responses.
+ * Messages loaded from a binary snapshot file stay in the file's bytes and are served from
+ * there; only the messages stored after it are held one by one
+ */
+class MessageBoard implements MessageStore {
+
+    // The messages of the loaded snapshot file, then those added after it with their
+    // pre-encoded MSGGET responses, index for index
+    private static final class Snapshot {
+        final MessageSnapshot base;
+        final String[] messages;
+        final byte[][] responses;
+
+        Snapshot(MessageSnapshot base, String[] messages, byte[][] responses) {
+            this.base = base;
+            this.messages = messages;
+            this.responses = responses;
+        }
+
+        int size() {
+            return base.size() + messages.length;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(MessageSnapshot.EMPTY, new String[0], new byte[0][]);
+
+    // Current messages, never modified once published
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(EMPTY);
+
+    // Where appended batches are written before they are published
+    private final MessageJournal journal;
+
+    MessageBoard(MessageJournal journal) {
+        this.journal = journal;
+    }
+
+
+    @Override
+    public int size() {
+        return snapshot.get().size();
+    }
+
+
+    /**
+     * Returns the message at the given position. Does not lock or allocate, except to decode
+     * a message of the loaded snapshot file
+     */
+    @Override
+    public String get(int index) {
+        Snapshot current = snapshot.get();
+        int baseSize = current.base.size();
+        return index < baseSize ? current.base.get(index) : current.messages[index - baseSize];
+    }
+
+
+    /**
+     * Writes the message's pre-encoded response. Does not lock, allocate or encode
+     */
+    @Override
+    public void writeResponse(int index, Server.ResponseSink sink) {
+        Snapshot current = snapshot.get();
+        int baseSize = current.base.size();
+        if (index < baseSize) {
+            current.base.writeResponse(index, sink);
+        } else {
+            sink.write(current.responses[index - baseSize]);
+        }
+    }
+
+
+    /**
+     * Writes a frame header and the message bytes of its pre-encoded response
+     */
+    @Override
+    public void writeFrame(int index, Server.ResponseSink sink, byte[] header) {
+        Snapshot current = snapshot.get();
+        int baseSize = current.base.size();
+        if (index < baseSize) {
+            current.base.writeFrame(index, sink, header);
+            return;
+        }
+        byte[] response = current.responses[index - baseSize];
+        int length = response.length - RESPONSE_HEADER.length - 1;
+        BinaryProtocol.putResponseHeader(header, 200, length);
+        sink.write(header);
+        sink.write(response, RESPONSE_HEADER.length, length);
+    }
+
+
+    /**
+     * Writes the message bytes of its pre-encoded response as a listing line
+     */
+    @Override
+    public void writeLine(int index, Server.ResponseSink sink) {
+        Snapshot current = snapshot.get();
+        int baseSize = current.base.size();
+        if (index < baseSize) {
+            current.base.writeLine(index, sink);
+            return;
+        }
+        byte[] response = current.responses[index - baseSize];
+        if (response[RESPONSE_HEADER.length] == '.') {
+            sink.write(DOT);
+        }
+        sink.write(response, RESPONSE_HEADER.length, response.length - RESPONSE_HEADER.length);
+    }
+
+
+    /**
+     * Writes the batch to the journal, then publishes it to readers
+     */
+    @Override
+    public void append(List<String> messages) throws IOException {
+        journal.append(size(), messages);
+        addAll(messages);
+    }
+
+
+    // The journal is opened and closed by the server, which also uses it for compaction
+    @Override
+    public void close() {
+    }
+
+
+    /**
+     * Appends several messages with a single copy of the arrays
+     */
+    void addAll(List<String> messages) {
+        byte[][] encoded = new byte[messages.size()][];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = MessageStore.encodeResponse(messages.get(i));
+        }
+
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = snapshot.get();
+            int size = current.messages.length;
+            String[] grownMessages = Arrays.copyOf(current.messages, size + encoded.length);
+            byte[][] grownResponses = Arrays.copyOf(current.responses, size + encoded.length);
+            for (int i = 0; i < encoded.length; i++) {
+                grownMessages[size + i] = messages.get(i);
+                grownResponses[size + i] = encoded[i];
+            }
+            updated = new Snapshot(current.base, grownMessages, grownResponses);
+        } while (!snapshot.compareAndSet(current, updated));
+    }
+
+
+    /**
+     * Replaces all messages, used when loading them at startup
+     */
+    void replaceAll(Collection<String> messages) {
+        String[] loaded = messages.toArray(new String[0]);
+        byte[][] encoded = new byte[loaded.length][];
+        for (int i = 0; i < loaded.length; i++) {
+            encoded[i] = MessageStore.encodeResponse(loaded[i]);
+        }
+        snapshot.set(new Snapshot(MessageSnapshot.EMPTY, loaded, encoded));
+    }
+
+
+    /**
+     * Replaces all messages with those of a binary snapshot file, which are served from it
+     */
+    void replaceAll(MessageSnapshot loaded) {
+        snapshot.set(new Snapshot(loaded, EMPTY.messages, EMPTY.responses));
+    }
+
+
+    /**
+     * Writes the current messages as a binary snapshot, see MessageSnapshot
+     * Returns the number of messages written
+     */
+    int writeSnapshot(Path file) throws IOException {
+        Snapshot current = snapshot.get();
+        MessageSnapshot.write(file, current.base, current.responses);
+        return current.size();
+    }
+
+
+    // Copy of the current messages, decoding those of the loaded snapshot file
+    String[] snapshot() {
+        Snapshot current = snapshot.get();
+        int baseSize = current.base.size();
+        String[] messages = new String[current.size()];
+        for (int i = 0; i < baseSize; i++) {
+            messages[i] = current.base.get(i);
+        }
+        System.arraycopy(current.messages, 0, messages, baseSize, current.messages.length);
+        return messages;
+    }
+}
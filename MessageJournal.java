@@ -0,0 +1,267 @@
+/*
+ * MessageJournal.java
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of stored messages
+ * Each record is [payload length][CRC32][message index][UTF-8 payload]. The index is the
+ * message's position in the full message list, so replay can skip records that are already
+ * in the snapshot file and compaction never has to coordinate with writers beyond a short lock
+ */
+class MessageJournal {
+
+    // How appended records reach the disk
+    enum FsyncPolicy {
+        ALWAYS, // force after every append
+        GROUP,  // force at most every group commit interval
+        OS      // leave it to the operating system
+    }
+
+    // length (4) + checksum (4) + index (8)
+    private static final int HEADER_SIZE = 16;
+
+    // Records claiming to be larger than this are treated as corrupt
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final Path path;
+    private final FsyncPolicy policy;
+    private final long groupCommitMillis;
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel channel;
+    private ByteBuffer recordBuffer = ByteBuffer.allocate(1024);
+    private ScheduledExecutorService flusher;
+
+    // Appended since the last force
+    private boolean dirty = false;
+
+    MessageJournal(String file, FsyncPolicy policy, long groupCommitMillis) {
+        this.path = Paths.get(file);
+        this.policy = policy;
+        this.groupCommitMillis = groupCommitMillis;
+    }
+
+
+    /**
+     * Opens the journal, adds the messages it holds beyond the first loaded ones (those of the
+     * snapshot) to the replayed list and positions the journal for appending. A torn or corrupt
+     * record ends the replay: it and everything after it is cut off with a warning
+     * Returns the number of messages replayed
+     */
+    synchronized int open(int loaded, List<String> replayed) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        int before = replayed.size();
+        long validEnd = replay(loaded, replayed);
+        long size = channel.size();
+        if (validEnd < size) {
+            Log.warn("Ignoring {} bytes of torn or corrupt records at the end of {} (offset {})", size - validEnd, path, validEnd);
+            channel.truncate(validEnd);
+            channel.force(false);
+        }
+        channel.position(validEnd);
+
+        if (policy == FsyncPolicy.GROUP) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "journal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushQuietly, groupCommitMillis, groupCommitMillis, TimeUnit.MILLISECONDS);
+        }
+        return replayed.size() - before;
+    }
+
+
+    /**
+     * Appends messages stored at consecutive indexes of the message list, starting at firstIndex,
+     * with a single write (and a single force under the ALWAYS policy)
+     * Callers append indexes in order, one batch after another
+     */
+    synchronized void append(long firstIndex, List<String> messages) throws IOException {
+        recordBuffer.clear();
+        long index = firstIndex;
+        for (String message : messages) {
+            byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+            if (recordBuffer.remaining() < HEADER_SIZE + payload.length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(recordBuffer.capacity() * 2,
+                    recordBuffer.position() + HEADER_SIZE + payload.length));
+                recordBuffer.flip();
+                recordBuffer = grown.put(recordBuffer);
+            }
+            recordBuffer.putInt(payload.length).putInt(checksum(index, payload)).putLong(index).put(payload);
+            index++;
+        }
+        recordBuffer.flip();
+
+        long start = channel.position();
+        try {
+            while (recordBuffer.hasRemaining()) {
+                channel.write(recordBuffer);
+            }
+        } catch (IOException e) {
+            // Don't leave half a record in front of the next one
+            channel.truncate(start);
+            throw e;
+        }
+
+        if (policy == FsyncPolicy.ALWAYS) {
+            long forceStart = System.nanoTime();
+            channel.force(false);
+            Metrics.FSYNC.record(System.nanoTime() - forceStart);
+        } else {
+            dirty = true;
+        }
+    }
+
+
+    /**
+     * Forces appended records to disk. The force runs outside the lock so appends can continue
+     */
+    void flush() throws IOException {
+        FileChannel current;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            current = channel;
+        }
+        try {
+            long start = System.nanoTime();
+            current.force(false);
+            Metrics.FSYNC.record(System.nanoTime() - start);
+        } catch (ClosedChannelException e) {
+            // Replaced by compaction, which forced the new file itself
+        }
+    }
+
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            Log.error("Error flushing message journal: {}", e);
+        }
+    }
+
+
+    /**
+     * Drops the records of messages below the given index, once they are safely in the snapshot.
+     * The remaining records are copied to a new file that atomically replaces the journal
+     */
+    synchronized void truncateBefore(long index) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long end = channel.position();
+            while (position < end) {
+                header.clear();
+                readFully(channel, header, position);
+                int recordSize = HEADER_SIZE + header.getInt(0);
+                if (header.getLong(8) >= index) {
+                    while (position < end) {
+                        position += channel.transferTo(position, end - position, out);
+                    }
+                    break;
+                }
+                position += recordSize;
+            }
+            out.force(false);
+        }
+
+        channel.close();
+        Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        dirty = false;
+    }
+
+
+    // Check if there are records that compaction could fold into the snapshot
+    synchronized boolean isEmpty() throws IOException {
+        return channel.position() == 0;
+    }
+
+
+    /**
+     * Stops the background flusher and forces and closes the journal
+     */
+    synchronized void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        if (channel != null && channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+
+    /**
+     * Reads records from the start of the journal, adding each message whose index is the
+     * next one expected after the loaded messages and those replayed so far. Returns the offset
+     * just past the last valid record
+     */
+    private long replay(long loaded, List<String> messages) throws IOException {
+        long first = loaded - messages.size();
+        long size = channel.size();
+        long offset = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(channel.position(0)), 64 * 1024));
+
+        while (offset + HEADER_SIZE <= size) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            long index = in.readLong();
+            if (length < 0 || length > MAX_RECORD_SIZE || offset + HEADER_SIZE + length > size) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            if (checksum(index, payload) != checksum) {
+                break;
+            }
+            long next = first + messages.size();
+            if (index > next) {
+                Log.warn("{} skips from message {} to {}, stopping replay", path, next, index);
+                break;
+            }
+            if (index == next) {
+                messages.add(new String(payload, StandardCharsets.UTF_8));
+            }
+            offset += HEADER_SIZE + length;
+        }
+        return offset;
+    }
+
+
+    private int checksum(long index, byte[] payload) {
+        crc.reset();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (index >>> shift));
+        }
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of journal");
+            }
+        }
+    }
+}
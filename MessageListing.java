@@ -0,0 +1,153 @@
+/*
+ * MessageListing.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * A MSGLIST response in progress: the range of messages still to send and the session's protocol
+ * The listing is written a chunk of messages at a time straight from the store, so a large
+ * range is never built up in memory. Blocking sessions write every chunk in a row, their socket
+ * pacing them; an nio connection writes a chunk per command of its turn and resumes the listing
+ * when the socket drains or its next turn comes
+ *
+ * Text:   "200 OK", one line per message with a leading '.' doubled, then a line with "."
+ * Binary: a 200 response per message, then a 200 response without payload
+ * Binary with compressed listings: a 200 response per chunk carrying that chunk's per-message
+ * responses deflated, then a 200 response without payload. The chunks are one deflate stream,
+ * flushed after each, so later chunks refer back to the text of earlier ones
+ */
+final class MessageListing {
+
+    // Messages written per chunk
+    static final int CHUNK_SIZE = 64;
+
+    // Terminating line of a text listing
+    private static final byte[] END_LINE = { '.', '\n' };
+
+    private final MessageStore store;
+    private final Server.SessionState session;
+    private int next;
+    private final int end;
+
+    // Set for compressed listings: the chunk's responses before and after compression
+    private final Deflater deflater;
+    private ChunkBuffer chunk;
+    private byte[] compressed;
+
+    /**
+     * Lists messages [offset, end) of the store, end being at most its size
+     */
+    MessageListing(MessageStore store, Server.SessionState session, int offset, int end) {
+        this.store = store;
+        this.session = session;
+        this.next = offset;
+        this.end = end;
+        this.deflater = session.compressesListings() ? new Deflater(Deflater.BEST_SPEED) : null;
+    }
+
+
+    /**
+     * Writes the next chunk of messages, followed by the terminator once all of them are written
+     * Returns true when the listing is complete
+     */
+    boolean writeChunk(Server.ResponseSink sink) {
+        int chunkEnd = Math.min(end, next + CHUNK_SIZE);
+        if (deflater != null && next < chunkEnd) {
+            writeCompressed(chunkEnd, sink);
+        }
+        for (; next < chunkEnd; next++) {
+            if (session.isBinary()) {
+                store.writeFrame(next, sink, session.frameHeader());
+            } else {
+                store.writeLine(next, sink);
+            }
+        }
+        if (next < end) {
+            return false;
+        }
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (session.isBinary()) {
+            sink.write(Server.Status.OK.frame);
+        } else {
+            sink.write(END_LINE);
+        }
+        return true;
+    }
+
+
+    /**
+     * Writes the responses of messages [next, chunkEnd) into the chunk buffer, then sends them
+     * deflated as one response
+     */
+    private void writeCompressed(int chunkEnd, Server.ResponseSink sink) {
+        if (chunk == null) {
+            chunk = new ChunkBuffer();
+            compressed = new byte[8192];
+        }
+        chunk.length = 0;
+        for (; next < chunkEnd; next++) {
+            store.writeFrame(next, chunk, session.frameHeader());
+        }
+        deflater.setInput(chunk.bytes, 0, chunk.length);
+        int length = BinaryProtocol.RESPONSE_HEADER;
+        while (true) {
+            length += deflater.deflate(compressed, length, compressed.length - length, Deflater.SYNC_FLUSH);
+            if (length < compressed.length) {
+                break;
+            }
+            compressed = Arrays.copyOf(compressed, compressed.length * 2);
+        }
+        BinaryProtocol.putResponseHeader(compressed, 200, length - BinaryProtocol.RESPONSE_HEADER);
+        sink.write(compressed, 0, length);
+    }
+
+
+    // Collects a chunk's responses before they are compressed; not counted as bytes sent
+    private static final class ChunkBuffer implements Server.ResponseSink {
+        private byte[] bytes = new byte[8192];
+        private int length;
+
+        @Override
+        public void println(String line) {
+            byte[] encoded = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            write(encoded, 0, encoded.length);
+        }
+
+        @Override
+        public void write(byte[] src, int offset, int count) {
+            ensureCapacity(count);
+            System.arraycopy(src, offset, bytes, length, count);
+            length += count;
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) {
+            ensureCapacity(count);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, length, (int) count);
+            try {
+                while (buffer.hasRemaining()) {
+                    if (file.read(buffer, position + buffer.position() - length) < 0) {
+                        throw new EOFException("Unexpected end of " + file);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            length += (int) count;
+        }
+
+        private void ensureCapacity(long count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, (int) Math.max(bytes.length * 2L, length + count));
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * MessageSnapshot.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the in-memory messages, written by compaction and read at startup
+ *
+ * Header:  magic (4), version (4), message count (4), blob length (4), CRC32 of the rest (4)
+ * Offsets: start of each message in the blob (4 each)
+ * Blob:    the UTF-8 messages, each followed by a newline
+ *
+ * Numbers are big-endian. The file is read with one bulk read, checked as a whole and then
+ * served as it is: a message is a slice of the blob, sent behind the "200 OK" line, and is
+ * only decoded when it is asked for as a String. Loading therefore costs one read and one
+ * checksum, however many messages there are. Like the store it is written to a temporary
+ * file, synced and moved into place, so a crash leaves the old or the new one
+ */
+final class MessageSnapshot {
+
+    private static final int MAGIC = 0x4D534753; // "MSGS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+
+    // The whole file is held in one array
+    private static final long MAX_FILE_SIZE = Integer.MAX_VALUE - 8;
+
+    static final MessageSnapshot EMPTY = new MessageSnapshot(new byte[HEADER_SIZE], 0);
+
+    // The file as read: header, offset table and blob
+    private final byte[] data;
+    private final ByteBuffer view;
+    private final int count;
+    private final int blobStart;
+
+    private MessageSnapshot(byte[] data, int count) {
+        this.data = data;
+        this.view = ByteBuffer.wrap(data);
+        this.count = count;
+        this.blobStart = HEADER_SIZE + 4 * count;
+    }
+
+
+    int size() {
+        return count;
+    }
+
+    // Decodes the message at the given position
+    String get(int index) {
+        int start = start(index);
+        return new String(data, start, end(index) - start - 1, StandardCharsets.UTF_8);
+    }
+
+    // Writes the MSGGET response: the status line, then the message and its newline as stored
+    void writeResponse(int index, Server.ResponseSink sink) {
+        int start = start(index);
+        sink.write(MessageStore.RESPONSE_HEADER);
+        sink.write(data, start, end(index) - start);
+    }
+
+    // Writes the message and its newline as a listing line, see MessageStore.writeLine
+    void writeLine(int index, Server.ResponseSink sink) {
+        int start = start(index);
+        if (data[start] == '.') {
+            sink.write(MessageStore.DOT);
+        }
+        sink.write(data, start, end(index) - start);
+    }
+
+    // Writes the message as a binary 200 response using the caller's header buffer
+    void writeFrame(int index, Server.ResponseSink sink, byte[] header) {
+        int start = start(index);
+        int length = end(index) - start - 1;
+        BinaryProtocol.putResponseHeader(header, 200, length);
+        sink.write(header);
+        sink.write(data, start, length);
+    }
+
+    // Position of a message in data, and of the message after it
+    private int start(int index) {
+        return blobStart + view.getInt(HEADER_SIZE + 4 * index);
+    }
+
+    private int end(int index) {
+        return index + 1 < count ? start(index + 1) : data.length;
+    }
+
+
+    /**
+     * Reads a snapshot, failing if the file is truncated, corrupt or of another version
+     */
+    static MessageSnapshot read(Path file) throws IOException {
+        byte[] data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > MAX_FILE_SIZE) {
+                throw new IOException(file + " is not a message snapshot (" + size + " bytes)");
+            }
+            data = new byte[(int) size];
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("Unexpected end of " + file);
+                }
+            }
+        }
+
+        ByteBuffer header = ByteBuffer.wrap(data, 0, HEADER_SIZE);
+        int magic = header.getInt();
+        int version = header.getInt();
+        int count = header.getInt();
+        int blobLength = header.getInt();
+        int checksum = header.getInt();
+        if (magic != MAGIC || version != VERSION) {
+            throw new IOException(file + " is not a version " + VERSION + " message snapshot");
+        }
+        if (count < 0 || blobLength < 0 || (long) HEADER_SIZE + 4L * count + blobLength != data.length) {
+            throw new IOException(file + " is truncated or corrupt: " + count + " messages in " + data.length + " bytes");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, HEADER_SIZE, data.length - HEADER_SIZE);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException(file + " is corrupt: checksum mismatch");
+        }
+
+        // Every message must end with its newline inside the blob
+        MessageSnapshot snapshot = new MessageSnapshot(data, count);
+        int previousEnd = snapshot.blobStart;
+        for (int i = 0; i < count; i++) {
+            int start = snapshot.start(i);
+            int end = snapshot.end(i);
+            if (start != previousEnd || end <= start || end > data.length || data[end - 1] != '\n') {
+                throw new IOException(file + " is corrupt: bad offset for message " + i);
+            }
+            previousEnd = end;
+        }
+        return snapshot;
+    }
+
+
+    /**
+     * Writes the messages of a snapshot followed by more messages, given as their pre-encoded
+     * MSGGET responses, as a snapshot that atomically replaces the file
+     */
+    static void write(Path file, MessageSnapshot base, byte[][] responses) throws IOException {
+        int prefix = MessageStore.RESPONSE_HEADER.length;
+        long baseLength = base.data.length - base.blobStart;
+        long blobLength = baseLength;
+        for (byte[] response : responses) {
+            blobLength += response.length - prefix;
+        }
+        int count = base.count + responses.length;
+        if (HEADER_SIZE + 4L * count + blobLength > MAX_FILE_SIZE) {
+            throw new IOException("Messages are too large for a snapshot: " + blobLength + " bytes");
+        }
+
+        // Checksummed as it is written, so the header goes in last
+        CRC32 crc = new CRC32();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            write(ByteBuffer.wrap(base.data, HEADER_SIZE, 4 * base.count), channel, crc);
+
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            int offset = (int) baseLength;
+            for (byte[] response : responses) {
+                if (buffer.remaining() < 4) {
+                    drain(buffer, channel, crc);
+                }
+                buffer.putInt(offset);
+                offset += response.length - prefix;
+            }
+            drain(buffer, channel, crc);
+
+            write(ByteBuffer.wrap(base.data, base.blobStart, (int) baseLength), channel, crc);
+            for (byte[] response : responses) {
+                int length = response.length - prefix;
+                if (buffer.remaining() < length) {
+                    drain(buffer, channel, crc);
+                }
+                if (buffer.remaining() < length) {
+                    write(ByteBuffer.wrap(response, prefix, length), channel, crc);
+                } else {
+                    buffer.put(response, prefix, length);
+                }
+            }
+            drain(buffer, channel, crc);
+
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt((int) blobLength)
+                .putInt((int) crc.getValue()).flip();
+            channel.position(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Writes out the buffered bytes and empties the buffer
+    private static void drain(ByteBuffer buffer, FileChannel channel, CRC32 crc) throws IOException {
+        buffer.flip();
+        write(buffer, channel, crc);
+        buffer.clear();
+    }
+
+    // Writes all remaining bytes of the buffer, adding them to the checksum
+    private static void write(ByteBuffer bytes, FileChannel channel, CRC32 crc) throws IOException {
+        crc.update(bytes.duplicate());
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+}
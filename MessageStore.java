@@ -0,0 +1,57 @@
+/*
+ * MessageStore.java
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Storage engine for the messages of the day
+ * Messages are numbered from 0 in the order they were stored. Reads may come from any
+ * thread at any time; appends only come from the group commit writer, one batch at a time.
+ * Stores keep every message as a ready-to-send MSGGET response: "200 OK", the message, newlines
+ */
+interface MessageStore {
+
+    // Status line at the start of every MSGGET response
+    byte[] RESPONSE_HEADER = "200 OK\n".getBytes(StandardCharsets.UTF_8);
+
+    // Written before a listed message that starts with one, see writeLine
+    byte[] DOT = { '.' };
+
+    // Number of messages currently visible to readers
+    int size();
+
+    // Message at the given position, 0 <= index < size()
+    String get(int index);
+
+    // Writes the pre-encoded MSGGET response for the message at the given position
+    void writeResponse(int index, Server.ResponseSink sink);
+
+    // Writes the message at the given position as a binary protocol 200 response, using the
+    // caller's header buffer of BinaryProtocol.RESPONSE_HEADER bytes
+    void writeFrame(int index, Server.ResponseSink sink, byte[] header);
+
+    // Writes the message at the given position as a line of a MSGLIST listing: the message and
+    // its newline, with a leading '.' doubled so that no message reads as the terminating "."
+    void writeLine(int index, Server.ResponseSink sink);
+
+    // Appends a batch of messages, durable according to the store's sync policy when it returns
+    void append(List<String> messages) throws IOException;
+
+    // Syncs and releases the store's files
+    void close() throws IOException;
+
+
+    /**
+     * Encodes the MSGGET response for a message
+     */
+    static byte[] encodeResponse(String message) {
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        byte[] response = Arrays.copyOf(RESPONSE_HEADER, RESPONSE_HEADER.length + text.length + 1);
+        System.arraycopy(text, 0, response, RESPONSE_HEADER.length, text.length);
+        response[response.length - 1] = '\n';
+        return response;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Metrics.java
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Server instrumentation: command counts and latencies, connections, bytes, rate limits, store and fsync times
+ * Everything is recorded into LongAdder cells, which are striped per thread under contention,
+ * so recording on the request path neither locks nor allocates. Reading the values (STATS and
+ * the periodic dump) sums the cells and is not an exact point-in-time snapshot
+ */
+final class Metrics {
+
+    // Commands with their own counters and latency histograms
+    enum Command { MSGGET, LOGIN, LOGOUT, MSGSTORE, SHUTDOWN, QUIT, STATS, SUBSCRIBE, MSGLIST, CURSOR }
+
+    private static final Histogram[] COMMANDS = new Histogram[Command.values().length];
+    static {
+        for (Command command : Command.values()) {
+            COMMANDS[command.ordinal()] = new Histogram();
+        }
+    }
+
+    // Lines that are not a known command
+    private static final LongAdder UNKNOWN_COMMANDS = new LongAdder();
+
+    private static final LongAdder ACTIVE_CONNECTIONS = new LongAdder();
+    private static final LongAdder TOTAL_CONNECTIONS = new LongAdder();
+
+    // Connections turned away with a 503 because the server was full, and closed for being idle
+    private static final LongAdder REJECTED_CONNECTIONS = new LongAdder();
+    private static final LongAdder IDLE_CONNECTIONS = new LongAdder();
+
+    private static final LongAdder BYTES_IN = new LongAdder();
+    private static final LongAdder BYTES_OUT = new LongAdder();
+
+    // Subscribed connections, messages queued for them, dropped because a queue was full,
+    // and subscribers disconnected for falling behind
+    private static final LongAdder SUBSCRIBERS = new LongAdder();
+    private static final LongAdder PUSH_QUEUED = new LongAdder();
+    private static final LongAdder PUSH_DROPPED = new LongAdder();
+    private static final LongAdder SUBSCRIBERS_DISCONNECTED = new LongAdder();
+
+    // Rate limits, reported with their hit counts, see RateLimiter
+    private static final List<RateLimiter> RATE_LIMITERS = new CopyOnWriteArrayList<>();
+
+    // This server's replication role, reported when it has one
+    private static volatile Replication replication;
+
+    // Times a connection had commands left when its turn on the nio event loop ended
+    private static final LongAdder TURNS_DEFERRED = new LongAdder();
+
+    // Time to append a commit batch to the store, and time spent in fsync (journal or mapped files)
+    static final Histogram STORE_WRITE = new Histogram();
+    static final Histogram FSYNC = new Histogram();
+
+    private Metrics() {
+    }
+
+
+    static void record(Command command, long nanos) {
+        COMMANDS[command.ordinal()].record(nanos);
+    }
+
+    static void setReplication(Replication role) {
+        replication = role;
+    }
+
+    static void unknownCommand() {
+        UNKNOWN_COMMANDS.increment();
+    }
+
+    static void connectionOpened() {
+        ACTIVE_CONNECTIONS.increment();
+        TOTAL_CONNECTIONS.increment();
+    }
+
+    static void connectionClosed() {
+        ACTIVE_CONNECTIONS.decrement();
+    }
+
+    static void connectionRejected() {
+        REJECTED_CONNECTIONS.increment();
+    }
+
+    static void idleClosed() {
+        IDLE_CONNECTIONS.increment();
+    }
+
+    static void bytesIn(long bytes) {
+        BYTES_IN.add(bytes);
+    }
+
+    static void bytesOut(long bytes) {
+        BYTES_OUT.add(bytes);
+    }
+
+    static void subscribed() {
+        SUBSCRIBERS.increment();
+    }
+
+    static void unsubscribed() {
+        SUBSCRIBERS.decrement();
+    }
+
+    static void pushQueued(long messages) {
+        PUSH_QUEUED.add(messages);
+    }
+
+    static void pushDropped() {
+        PUSH_DROPPED.increment();
+    }
+
+    static void subscriberDisconnected() {
+        SUBSCRIBERS_DISCONNECTED.increment();
+    }
+
+    static void addRateLimiter(RateLimiter limiter) {
+        RATE_LIMITERS.add(limiter);
+    }
+
+    static void turnDeferred() {
+        TURNS_DEFERRED.increment();
+    }
+
+
+    /**
+     * Current values, one "name value..." line each
+     */
+    static String report() {
+        StringBuilder out = new StringBuilder(1024);
+        out.append("uptime_seconds ").append(TimeUnit.MILLISECONDS.toSeconds(ManagementFactory.getRuntimeMXBean().getUptime())).append('\n');
+        out.append("connections_active ").append(ACTIVE_CONNECTIONS.sum()).append('\n');
+        out.append("connections_total ").append(TOTAL_CONNECTIONS.sum()).append('\n');
+        out.append("connections_rejected ").append(REJECTED_CONNECTIONS.sum()).append('\n');
+        out.append("connections_idle_closed ").append(IDLE_CONNECTIONS.sum()).append('\n');
+        out.append("bytes_in ").append(BYTES_IN.sum()).append('\n');
+        out.append("bytes_out ").append(BYTES_OUT.sum()).append('\n');
+        for (Command command : Command.values()) {
+            COMMANDS[command.ordinal()].describe(out.append("command_").append(command).append(' ')).append('\n');
+        }
+        out.append("command_unknown count=").append(UNKNOWN_COMMANDS.sum()).append('\n');
+        out.append("subscribers_active ").append(SUBSCRIBERS.sum()).append('\n');
+        out.append("push_queued ").append(PUSH_QUEUED.sum()).append('\n');
+        out.append("push_dropped ").append(PUSH_DROPPED.sum()).append('\n');
+        out.append("subscribers_disconnected ").append(SUBSCRIBERS_DISCONNECTED.sum()).append('\n');
+        for (RateLimiter limiter : RATE_LIMITERS) {
+            limiter.describe(out).append('\n');
+        }
+        out.append("turns_deferred ").append(TURNS_DEFERRED.sum()).append('\n');
+        STORE_WRITE.describe(out.append("store_write ")).append('\n');
+        FSYNC.describe(out.append("fsync ")).append('\n');
+        out.append("log_dropped ").append(Log.getDropped()).append('\n');
+        Replication current = replication;
+        if (current != null) {
+            current.describe(out).append('\n');
+        }
+        return out.toString();
+    }
+
+
+    /**
+     * Appends a timestamped report to the file every intervalMillis, on a daemon thread
+     */
+    static void startDump(String file, long intervalMillis) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleWithFixedDelay(() -> dump(file), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static void dump(String file) {
+        String report = "# " + LocalDateTime.now() + "\n" + report() + "\n";
+        try {
+            Files.write(Paths.get(file), report.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            Log.warn("Error writing metrics to {}: {}", file, e);
+        }
+    }
+
+
+    /**
+     * Latency histogram with log-linear buckets, in the style of HdrHistogram
+     * Values below 16 get a bucket each; above that every power of two is split into 8 buckets,
+     * so a reported percentile is within 12.5% of the recorded value
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int LINEAR = SUB_BUCKETS * 2;
+        private static final int BUCKETS = LINEAR + (63 - (SUB_BITS + 1)) * SUB_BUCKETS;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets[bucketOf(value)].increment();
+            count.increment();
+            total.add(value);
+            max.accumulate(value);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        // Upper bound of the bucket holding the given fraction of the recorded values
+        long percentile(double fraction) {
+            long[] counts = new long[BUCKETS];
+            long recorded = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                recorded += counts[i];
+            }
+            if (recorded == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * recorded));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        // "count=N mean_us=... p50_us=... p99_us=... p999_us=... max_us=..."
+        StringBuilder describe(StringBuilder out) {
+            long n = count.sum();
+            out.append("count=").append(n);
+            out.append(" mean_us=").append(micros(n == 0 ? 0 : total.sum() / n));
+            out.append(" p50_us=").append(micros(percentile(0.50)));
+            out.append(" p99_us=").append(micros(percentile(0.99)));
+            out.append(" p999_us=").append(micros(percentile(0.999)));
+            out.append(" max_us=").append(micros(max.get()));
+            return out;
+        }
+
+        private static String micros(long nanos) {
+            return nanos < 10_000 ? String.format(Locale.ROOT, "%.1f", nanos / 1000.0) : Long.toString(nanos / 1000);
+        }
+
+        private static int bucketOf(long value) {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int shift = exponent - SUB_BITS;
+            int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return LINEAR + (exponent - SUB_BITS - 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            int exponent = (bucket - LINEAR) / SUB_BUCKETS + SUB_BITS + 1;
+            int sub = (bucket - LINEAR) % SUB_BUCKETS;
+            int shift = exponent - SUB_BITS;
+            return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+    }
+}
@@ -0,0 +1,823 @@
+/*
+ * NioServer.java
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+/**
+ * Event-loop transport for the server (-Dserver.mode=nio)
+ * A few selector threads serve all clients with non-blocking channels. Each connection
+ * only keeps a small read buffer; responses are encoded into a buffer shared by the
+ * event loop and copied to the connection only when the client cannot take them at once,
+ * so idle clients cost the same small amount of memory each.
+ * Connections take turns (deficit round robin): each turn a connection runs at most its share
+ * of commands, server.nio.quantum times its weight, and the rest of its pipelined commands wait
+ * for the next round, after every other ready connection has had its turn. Reading from it
+ * pauses meanwhile, so a client that floods the server is slowed down by TCP flow control
+ * instead of delaying everyone else on its event loop
+ */
+class NioServer {
+
+    // Per-connection read buffer size, also the longest line or binary request a client can send (-Dserver.nio.readBuffer=N)
+    private static final int READ_BUFFER_SIZE = Integer.getInteger("server.nio.readBuffer", 1024);
+
+    // Size of the response buffer shared by all connections of one event loop
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    // Commands a connection runs per turn, 0 for no limit, and how many shares root's
+    // connections get (-Dserver.nio.quantum=N, -Dserver.nio.rootWeight=N)
+    private static final int QUANTUM = Integer.getInteger("server.nio.quantum", 16);
+    private static final int ROOT_WEIGHT = Integer.getInteger("server.nio.rootWeight", 4);
+
+    private final ServerSocketChannel serverChannel;
+    private final SelectionKey acceptKey;
+    private final EventLoop[] loops;
+    private final List<Thread> threads = new ArrayList<>();
+    private int nextLoop = 0;
+
+    // Set once the server has drained; the event loops then close what is left and exit
+    private volatile boolean stopped = false;
+
+    // Set while the server is full and new clients are left in the listen backlog
+    private volatile boolean acceptPaused = false;
+
+    NioServer(int port, int threads) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), Server.BACKLOG);
+        serverChannel.configureBlocking(false);
+
+        loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        // The first loop also accepts new connections
+        acceptKey = serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+
+    /**
+     * Starts the event loops, each on its own thread, and returns
+     */
+    void start() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+
+    /**
+     * Closes the server channel, on the accepting loop, so no new connections arrive
+     */
+    void stopAccepting() {
+        loops[0].execute(() -> {
+            acceptKey.cancel();
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing server channel: {}", e);
+            }
+        });
+    }
+
+
+    /**
+     * Stops the event loops, closing any connections they still have, and waits for them
+     */
+    void stop() {
+        stopped = true;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+
+    /**
+     * Accepts all pending connections and spreads them over the event loops round-robin.
+     * When the server is full they are rejected, or accepting pauses until a connection closes
+     */
+    private void acceptConnections() throws IOException {
+        while (true) {
+            boolean admitted = Server.tryAdmitConnection();
+            if (!admitted && Server.pauseWhenFull()) {
+                acceptPaused = true;
+                acceptKey.interestOps(0);
+                return;
+            }
+            SocketChannel channel = serverChannel.accept();
+            if (channel == null) {
+                if (admitted) {
+                    Server.releaseConnection();
+                }
+                return;
+            }
+            if (!admitted) {
+                reject(channel);
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            Log.debug("Client connected from: {}", channel.socket().getInetAddress());
+
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            if (loop == loops[0]) {
+                loop.register(channel);
+            } else {
+                loop.newChannels.add(channel);
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    // Answers a connection the server has no room for with "503" and closes it
+    private static void reject(SocketChannel channel) {
+        Metrics.connectionRejected();
+        try {
+            channel.configureBlocking(false);
+            channel.write(ByteBuffer.wrap(Server.Status.SERVICE_UNAVAILABLE.line));
+            channel.shutdownOutput();
+        } catch (IOException e) {
+            Log.debug("Error rejecting client: {}", e);
+        }
+        Server.closeRejected(channel);
+    }
+
+    // Starts accepting again if the server was full, once a connection has closed
+    private void resumeAccepting() {
+        if (acceptPaused) {
+            loops[0].execute(() -> {
+                if (acceptPaused && acceptKey.isValid()) {
+                    acceptPaused = false;
+                    acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                }
+            });
+        }
+    }
+
+
+    /**
+     * One selector thread and the connections registered with it
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+        // Connections whose turn ended with commands left, in the order they get their next one
+        private final Queue<Connection> deferred = new ArrayDeque<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                try {
+                    // Connections with commands left must not wait for new input
+                    if (deferred.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    SocketChannel channel;
+                    while ((channel = newChannels.poll()) != null) {
+                        register(channel);
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            acceptConnections();
+                        } else {
+                            ((Connection) key.attachment()).onReady(key);
+                        }
+                    }
+                    nextRound();
+                }
+                catch (IOException e) {
+                    Log.warn("Error in event loop: {}", e);
+                }
+            }
+            closeAll();
+        }
+
+        // Gives each connection that had commands left another turn, connections deferred
+        // again during this round waiting for the next one
+        private void nextRound() {
+            for (int turns = deferred.size(); turns > 0; turns--) {
+                deferred.poll().takeTurn();
+            }
+        }
+
+        // Runs a task on this event loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Called when a connection of this loop closes and its permit is returned
+        void connectionReleased() {
+            resumeAccepting();
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.session.setRemoteAddress(channel.socket().getInetAddress());
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                Metrics.connectionOpened();
+                Server.sessionOpened(connection.session, () -> execute(() -> {
+                    if (connection.key.isValid()) {
+                        connection.stopIfShuttingDown();
+                        connection.flush();
+                    }
+                }), () -> execute(() -> {
+                    if (connection.key.isValid()) {
+                        connection.close();
+                    }
+                }));
+            } catch (IOException e) {
+                Log.warn("Error registering client: {}", e);
+                Server.releaseConnection();
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    Log.debug("Error closing client channel: {}", closeError);
+                }
+            }
+        }
+
+        private void closeAll() {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    Connection connection = (Connection) key.attachment();
+                    connection.flush();
+                    connection.close();
+                    Log.debug("Server shutting down - closing client connection");
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.warn("Error closing selector: {}", e);
+            }
+        }
+    }
+
+
+    /**
+     * A client connection: its session, the partially received line or binary request
+     * and any response bytes the client has not accepted yet
+     */
+    private static class Connection implements Server.ResponseSink {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final Server.SessionState session = new Server.SessionState();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private SelectionKey key;
+
+        // Response bytes waiting for the socket to become writable, null when none
+        private ByteBuffer pending;
+
+        // Skipping the rest of a line that did not fit in the read buffer
+        private boolean discarding = false;
+
+        // Payload bytes left to skip of a binary request that did not fit in the read buffer
+        private int skipping = 0;
+
+        // Set once the first bytes have shown whether the client speaks text or binary
+        private boolean negotiated = false;
+
+        // Close once all pending responses are written
+        private boolean closing = false;
+
+        // Waiting for an asynchronous reply; no further lines are processed until it is written
+        private boolean suspended = false;
+
+        // Set once the session subscribed; from then on input is discarded and pushes are sent
+        private boolean subscribed = false;
+
+        // Set while a delivery of pushed messages is queued on the event loop
+        private final AtomicBoolean pushScheduled = new AtomicBoolean();
+
+        // MSGLIST response being written; no further lines are processed until it is complete
+        private MessageListing listing;
+
+        // Commands left in this turn, and whether the connection waits in the loop's deferred
+        // queue for its next turn
+        private int deficit = 0;
+        private boolean deferred = false;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void onReady(SelectionKey key) {
+            try {
+                if (key.isWritable()) {
+                    onWritable();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    onReadable();
+                }
+            } catch (IOException | UncheckedIOException e) {
+                // Clients cut off by the shutdown end up here as well
+                if (Server.isRunning()) {
+                    Log.warn("Error handling client: {}", e);
+                } else {
+                    Log.debug("Error handling client: {}", e);
+                }
+                close();
+            }
+        }
+
+        /**
+         * Reads what is available and processes every complete line in order
+         */
+        private void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                Log.debug("Client disconnected");
+                close();
+                return;
+            }
+            Metrics.bytesIn(read);
+            if (!deferred) {
+                deficit = share();
+            }
+            processInput();
+        }
+
+        // Commands per turn: the quantum, weighted for root
+        private int share() {
+            if (QUANTUM <= 0) {
+                return Integer.MAX_VALUE;
+            }
+            return session.isRoot() ? QUANTUM * Math.max(1, ROOT_WEIGHT) : QUANTUM;
+        }
+
+        // Runs the commands that were left over when the connection's last turn ended
+        void takeTurn() {
+            deferred = false;
+            if (!key.isValid()) {
+                return;
+            }
+            deficit = share();
+            processInput();
+        }
+
+        /**
+         * Processes the complete lines or binary requests in the read buffer until one of them
+         * has to wait for an asynchronous reply or the turn is over, then writes the responses
+         */
+        private void processInput() {
+            if (subscribed) {
+                readBuffer.clear();
+                return;
+            }
+            boolean turnOver = false;
+            while (true) {
+                // A listing in progress goes first; it stops for the socket or the end of the turn
+                if (listing != null) {
+                    turnOver = continueListing();
+                    if (listing != null) {
+                        break;
+                    }
+                }
+                readBuffer.flip();
+                if (!negotiated && !negotiate()) {
+                    readBuffer.compact();
+                } else if (session.isBinary()) {
+                    turnOver = processFrames();
+                } else {
+                    turnOver = processLines();
+                }
+                if (listing == null) {
+                    break;
+                }
+            }
+            if (turnOver && !deferred) {
+                deferred = true;
+                loop.deferred.add(this);
+                Metrics.turnDeferred();
+            }
+            if (!subscribed && session.getSubscriber() != null) {
+                startPushes();
+            }
+            stopIfShuttingDown();
+            flush();
+        }
+
+        /**
+         * Once the server is shutting down and the request in progress has been answered, says
+         * goodbye and closes when the responses are written. Subscribers go when their last
+         * messages are sent, see deliverPushes
+         */
+        private void stopIfShuttingDown() {
+            if (!Server.isRunning() && !closing && !suspended && !subscribed && listing == null) {
+                Server.notifyShutdown(this, session);
+                closing = true;
+            }
+        }
+
+        /**
+         * Looks at the first bytes of the connection: the binary protocol's magic byte and
+         * version switch the session to binary requests, anything else is a text command.
+         * Returns false while there are not enough bytes to tell
+         */
+        private boolean negotiate() {
+            if (!readBuffer.hasRemaining()) {
+                return false;
+            }
+            if ((readBuffer.get(readBuffer.position()) & 0xFF) == BinaryProtocol.MAGIC) {
+                if (readBuffer.remaining() < 2) {
+                    return false;
+                }
+                readBuffer.get();
+                if (!Server.negotiateBinary(readBuffer.get() & 0xFF, this, session)) {
+                    closing = true;
+                }
+            }
+            negotiated = true;
+            return true;
+        }
+
+        // Processes complete binary requests, decoding the header in place in the read buffer
+        // Returns true when the turn ended with a request left
+        private boolean processFrames() {
+            boolean turnOver = false;
+            while (!closing && !suspended && listing == null && session.getSubscriber() == null && readBuffer.hasRemaining()) {
+                if (skipping > 0) {
+                    int skipped = Math.min(skipping, readBuffer.remaining());
+                    readBuffer.position(readBuffer.position() + skipped);
+                    skipping -= skipped;
+                    continue;
+                }
+                if (readBuffer.remaining() < BinaryProtocol.REQUEST_HEADER) {
+                    break;
+                }
+                int start = readBuffer.position();
+                int opcode = readBuffer.get(start) & 0xFF;
+                int length = BinaryProtocol.getUnsignedShort(readBuffer.array(), start + 1);
+                if (BinaryProtocol.REQUEST_HEADER + length > readBuffer.capacity()) {
+                    // Can never fit: reject it and skip its payload as it arrives
+                    Server.handleOverlongFrame(opcode, this, session);
+                    readBuffer.position(start + BinaryProtocol.REQUEST_HEADER);
+                    skipping = length;
+                    continue;
+                }
+                if (readBuffer.remaining() < BinaryProtocol.REQUEST_HEADER + length) {
+                    break;
+                }
+                if (deficit <= 0) {
+                    turnOver = true;
+                    break;
+                }
+                deficit--;
+                readBuffer.position(start + BinaryProtocol.REQUEST_HEADER + length);
+                boolean keepOpen = Server.processFrame(opcode, readBuffer.array(),
+                    start + BinaryProtocol.REQUEST_HEADER, length, session, this);
+                closing = !keepOpen;
+            }
+            readBuffer.compact();
+            return turnOver;
+        }
+
+        // Processes complete text lines, handing them to the server where they lie in the read buffer
+        // Returns true when the turn ended with a line left
+        private boolean processLines() {
+            boolean turnOver = false;
+            while (!closing && !suspended && listing == null && session.getSubscriber() == null && readBuffer.hasRemaining()) {
+                int end = indexOfNewline(readBuffer);
+                if (end < 0) {
+                    break;
+                }
+                if (discarding) {
+                    discarding = false;
+                } else {
+                    if (deficit <= 0) {
+                        turnOver = true;
+                        break;
+                    }
+                    deficit--;
+                    int start = readBuffer.position();
+                    int length = end > start && readBuffer.get(end - 1) == '\r' ? end - 1 - start : end - start;
+                    boolean keepOpen = Server.processLine(readBuffer.array(), start, length, session, this);
+                    closing = !keepOpen;
+                }
+                readBuffer.position(end + 1);
+            }
+
+            if (!closing && !suspended && listing == null && !turnOver && readBuffer.position() == 0 && readBuffer.limit() == readBuffer.capacity()) {
+                // A full buffer without a newline: reject the line and skip to its end
+                if (!discarding) {
+                    Server.handleOverlongLine(this, session);
+                }
+                discarding = true;
+                readBuffer.clear();
+            } else if (discarding) {
+                readBuffer.clear();
+            } else {
+                readBuffer.compact();
+            }
+            return turnOver;
+        }
+
+        private void onWritable() throws IOException {
+            Metrics.bytesOut(channel.write(pending));
+            if (!pending.hasRemaining()) {
+                pending = null;
+                updateInterest();
+                if (subscribed) {
+                    deliverPushes();
+                } else if (listing != null && key.isValid()) {
+                    if (!deferred) {
+                        deficit = share();
+                    }
+                    processInput();
+                }
+            }
+        }
+
+        /**
+         * Writes chunks of the listing in progress while the socket takes them, each costing
+         * one command of the turn. Returns true when the turn ended before the listing did
+         */
+        private boolean continueListing() {
+            while (pending == null) {
+                if (deficit <= 0) {
+                    return true;
+                }
+                deficit--;
+                if (listing.writeChunk(this)) {
+                    listing = null;
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        // Lets the event loop write the listing as the client takes it, see continueListing
+        @Override
+        public void stream(MessageListing listing) {
+            this.listing = listing;
+        }
+
+        /**
+         * Switches the connection to receiving pushed messages: the subscriber wakes the event
+         * loop when messages are queued, at most one delivery being scheduled at a time
+         */
+        private void startPushes() {
+            subscribed = true;
+            readBuffer.clear();
+            session.getSubscriber().setListener(() -> {
+                if (pushScheduled.compareAndSet(false, true)) {
+                    loop.execute(this::deliverPushes);
+                }
+            });
+            // Anything published before the listener was set
+            deliverPushes();
+        }
+
+        /**
+         * Writes the queued pushed messages, as many as the socket takes. Once some are left
+         * pending the rest stay queued, where the subscriber's overflow policy applies to them,
+         * and delivery resumes when the socket drains
+         */
+        private void deliverPushes() {
+            pushScheduled.set(false);
+            if (!key.isValid()) {
+                return;
+            }
+            Subscribers.Subscriber subscriber = session.getSubscriber();
+            if (subscriber.isOverflowed()) {
+                Log.debug("Closing a subscriber that fell behind");
+                close();
+                return;
+            }
+            // Nothing is published once the subscription is closed, so this delivery sends the last messages
+            boolean last = subscriber.isClosed();
+            byte[] push;
+            while (pending == null && (push = subscriber.poll()) != null) {
+                append(push, 0, push.length);
+            }
+            if (last && pending == null && !closing) {
+                Server.notifyShutdown(this, session);
+                closing = true;
+            }
+            flush();
+        }
+
+        /**
+         * Stops reading until the work completes, then writes the reply on the event loop
+         * and carries on with any lines that arrived in the meantime
+         */
+        @Override
+        public <T> void whenDone(CompletableFuture<T> work, BiConsumer<T, Throwable> reply) {
+            if (work.isDone()) {
+                // Already complete, such as a cached LOGIN: reply in order without pausing
+                Server.ResponseSink.super.whenDone(work, reply);
+                return;
+            }
+            suspended = true;
+            work.whenComplete((result, failure) -> loop.execute(() -> {
+                suspended = false;
+                if (!key.isValid()) {
+                    return;
+                }
+                try {
+                    reply.accept(result, failure instanceof CompletionException ? failure.getCause() : failure);
+                    processInput();
+                } catch (UncheckedIOException e) {
+                    Log.warn("Error handling client: {}", e);
+                    close();
+                }
+            }));
+        }
+
+        private int indexOfNewline(ByteBuffer buffer) {
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Appends a response line to the event loop's write buffer, or to this connection's
+         * pending bytes when earlier responses are still waiting for the socket
+         */
+        @Override
+        public void println(String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            append(bytes, 0, bytes.length);
+            append(NEWLINE, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            append(bytes, offset, length);
+        }
+
+        /**
+         * Reads a file region into the write buffer when it fits, so it goes out together with
+         * the other responses of this read; larger regions are sent with transferTo
+         */
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) {
+            ByteBuffer writeBuffer = loop.writeBuffer;
+            try {
+                if (pending == null && writeBuffer.remaining() < count) {
+                    flush();
+                }
+                if (pending == null && writeBuffer.remaining() >= count) {
+                    readFully(file, position, (int) count, writeBuffer);
+                    return;
+                }
+                if (pending == null) {
+                    long sent = file.transferTo(position, count, channel);
+                    Metrics.bytesOut(sent);
+                    position += sent;
+                    count -= sent;
+                }
+                if (count > 0) {
+                    // The client is not keeping up; keep the rest with its pending bytes
+                    pending = ensureCapacity(pending, (int) count);
+                    readFully(file, position, (int) count, pending);
+                    pending.flip();
+                    if (key.isValid()) {
+                        updateInterest();
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Reads count bytes of the file at position into the buffer
+        private static void readFully(FileChannel file, long position, int count, ByteBuffer buffer) throws IOException {
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + count);
+            while (buffer.hasRemaining()) {
+                int read = file.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of " + file);
+                }
+                position += read;
+            }
+            buffer.limit(limit);
+        }
+
+        private void append(byte[] bytes, int offset, int length) {
+            ByteBuffer writeBuffer = loop.writeBuffer;
+            if (pending == null && writeBuffer.remaining() < length) {
+                flush();
+            }
+            if (pending == null && writeBuffer.remaining() >= length) {
+                writeBuffer.put(bytes, offset, length);
+            } else {
+                pending = ensureCapacity(pending, length);
+                pending.put(bytes, offset, length);
+                pending.flip();
+            }
+        }
+
+        /**
+         * Writes the event loop's buffer to the socket. Whatever the client does not take
+         * is kept in this connection's pending bytes and reading pauses until it drains
+         */
+        private void flush() {
+            ByteBuffer writeBuffer = loop.writeBuffer;
+            writeBuffer.flip();
+            try {
+                if (pending == null && writeBuffer.hasRemaining()) {
+                    Metrics.bytesOut(channel.write(writeBuffer));
+                }
+            } catch (IOException e) {
+                Log.debug("Error writing to client: {}", e);
+                writeBuffer.clear();
+                close();
+                return;
+            }
+            if (writeBuffer.hasRemaining()) {
+                pending = ensureCapacity(pending, writeBuffer.remaining());
+                pending.put(writeBuffer);
+                pending.flip();
+            }
+            writeBuffer.clear();
+
+            if (key.isValid()) {
+                updateInterest();
+            }
+        }
+
+        // Wait for the socket while responses are pending, otherwise read unless paused
+        private void updateInterest() {
+            if (pending != null) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            } else if (closing) {
+                close();
+            } else {
+                key.interestOps(suspended || deferred ? 0 : SelectionKey.OP_READ);
+            }
+        }
+
+        // Returns a buffer in write mode holding the unread bytes of the given one plus room for more
+        private static ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+            if (buffer == null) {
+                return ByteBuffer.allocate(extra);
+            }
+            ByteBuffer grown = ByteBuffer.allocate(buffer.remaining() + extra);
+            grown.put(buffer);
+            return grown;
+        }
+
+        void close() {
+            key.cancel();
+            Server.endSession(session);
+            if (!channel.isOpen()) {
+                return;
+            }
+            Metrics.connectionClosed();
+            Server.releaseConnection();
+            loop.connectionReleased();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.warn("Error closing client channel: {}", e);
+            }
+        }
+    }
+
+    private static final byte[] NEWLINE = { '\n' };
+}
@@ -0,0 +1,132 @@
+/*
+ * RateLimiter.java
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Token bucket rate limits per key (a user name or a remote address), lock-free and bounded
+ * Each bucket is one AtomicLong holding its theoretical arrival time (GCRA): the time at which
+ * the bucket would be full again. A request is allowed when, after adding one interval for it,
+ * that time is at most burst intervals ahead of now, which is exactly a bucket of burst tokens
+ * refilled at perSecond; taking a token is one compare-and-set.
+ * Buckets live in a fixed table where each key may use one of two slots. A new key takes an
+ * empty slot or evicts the bucket of the two that has been idle longest; an evicted key starts
+ * again with a full bucket, so a table that is too small only makes the limits more lenient
+ */
+final class RateLimiter {
+
+    // One client's bucket
+    private static final class Bucket {
+        final Object key;
+        final AtomicLong full;
+
+        Bucket(Object key, long now) {
+            this.key = key;
+            this.full = new AtomicLong(now);
+        }
+    }
+
+    private final String name;
+    private final int perSecond;
+    private final int burst;
+    private final long interval;
+    private final long tolerance;
+    private final AtomicReferenceArray<Bucket> slots;
+    private final int mask;
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder limited = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    /**
+     * Allows perSecond requests per key on average and bursts of up to burst requests, keeping
+     * buckets for about tableSize keys. A rate of 0 or less allows everything
+     */
+    RateLimiter(String name, int perSecond, int burst, int tableSize) {
+        this.name = name;
+        this.perSecond = perSecond;
+        this.burst = Math.max(1, burst);
+        this.interval = perSecond > 0 ? Math.max(1, TimeUnit.SECONDS.toNanos(1) / perSecond) : 0;
+        this.tolerance = interval * this.burst;
+        int size = Integer.highestOneBit(Math.max(2, Math.min(tableSize, 1 << 24)) * 2 - 1);
+        this.slots = new AtomicReferenceArray<>(perSecond > 0 ? size : 0);
+        this.mask = size - 1;
+    }
+
+
+    boolean isEnabled() {
+        return interval > 0;
+    }
+
+    /**
+     * Takes a token from the key's bucket. Returns false when it is empty
+     */
+    boolean tryAcquire(Object key) {
+        if (interval == 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        AtomicLong full = bucket(key, now).full;
+        while (true) {
+            long current = full.get();
+            long next = Math.max(current - now, 0) + now + interval;
+            if (next - now > tolerance) {
+                limited.increment();
+                return false;
+            }
+            if (full.compareAndSet(current, next)) {
+                allowed.increment();
+                return true;
+            }
+        }
+    }
+
+    // Finds the key's bucket in one of its two slots, or installs a new one
+    private Bucket bucket(Object key, long now) {
+        int hash = key.hashCode() * 0x9E3779B9;
+        int first = hash >>> 16 & mask;
+        int second = first ^ (hash & mask | 1);
+        Bucket created = null;
+        // A key that loses every race still gets a bucket, just not one that is kept
+        for (int attempt = 0; attempt < 4; attempt++) {
+            Bucket a = slots.get(first);
+            if (a != null && a.key.equals(key)) {
+                return a;
+            }
+            Bucket b = slots.get(second);
+            if (b != null && b.key.equals(key)) {
+                return b;
+            }
+            if (created == null) {
+                created = new Bucket(key, now);
+            }
+            // The bucket that is full again earliest has been idle longest
+            boolean replaceFirst = a == null || (b != null && a.full.get() - b.full.get() <= 0);
+            Bucket victim = replaceFirst ? a : b;
+            if (slots.compareAndSet(replaceFirst ? first : second, victim, created)) {
+                if (victim != null) {
+                    evicted.increment();
+                }
+                return created;
+            }
+        }
+        return created;
+    }
+
+
+    // "rate_limit_NAME per_second=... burst=... allowed=... limited=... evicted=..."
+    StringBuilder describe(StringBuilder out) {
+        out.append("rate_limit_").append(name);
+        if (interval == 0) {
+            return out.append(" off");
+        }
+        out.append(" per_second=").append(perSecond);
+        out.append(" burst=").append(burst);
+        out.append(" allowed=").append(allowed.sum());
+        out.append(" limited=").append(limited.sum());
+        out.append(" evicted=").append(evicted.sum());
+        return out;
+    }
+}
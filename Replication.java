@@ -0,0 +1,118 @@
+/*
+ * Replication.java
+ */
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Leader/follower replication of the message log, and the stream both ends speak
+ * The leader sends every committed message, in store order, to each follower over its own TCP
+ * connection; followers append them to their local store, serve MSGGET from it and forward
+ * MSGSTOREs to the leader. Messages are numbered by their position in the store, so a follower
+ * that reconnects just says how many it has and the leader continues from there
+ *
+ * Handshake: the leader sends MAGIC (4 bytes) and a random challenge (16 bytes); the follower
+ * answers with MAGIC, its message count (8 bytes) and the HMAC-SHA256 of the challenge under the
+ * shared secret (32 bytes), so the secret never crosses the network. A peer that does not know
+ * the secret is disconnected before it can read or store anything
+ *
+ * Follower to leader, after the handshake:
+ *   ACK:   type (1), messages durably stored (8)
+ *   STORE: type (1), request id (8), user id and message (each a 4-byte length and UTF-8)
+ * Leader to follower:
+ *   RECORDS: type (1), index of the first message (8), count (4), the messages (each a 4-byte length and UTF-8)
+ *   STORED:  type (1), request id (8), status (2, the text protocol's), messages stored once it was committed (8)
+ *
+ * Neither side waits for the other: the leader keeps sending while acknowledgements come back,
+ * and a follower acknowledges everything it read and applied in one go with a single ACK
+ */
+abstract class Replication {
+
+    static final int MAGIC = 0x4d4f5452; // "MOTR"
+
+    static final int ACK = 1;
+    static final int STORE = 2;
+    static final int RECORDS = 1;
+    static final int STORED = 2;
+
+    // Longest message accepted from the stream; longer ones mean the stream is corrupt
+    static final int MAX_MESSAGE = 16 * 1024 * 1024;
+
+    static final int CHALLENGE_BYTES = 16;
+    static final int PROOF_BYTES = 32;
+
+    // How long either side waits for the other's half of the handshake
+    static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final byte[] secret;
+
+    Replication(byte[] secret) {
+        if (secret == null || secret.length == 0) {
+            throw new IllegalArgumentException("Replication needs a shared secret");
+        }
+        this.secret = secret.clone();
+    }
+
+    // Appends the role's state to a STATS report, one "replication_..." line per value
+    abstract StringBuilder describe(StringBuilder out);
+
+    // Stops replicating and closes the connections
+    abstract void close();
+
+
+    static byte[] newChallenge() {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        RANDOM.nextBytes(challenge);
+        return challenge;
+    }
+
+    // What a peer holding the secret answers to the challenge
+    byte[] proof(byte[] challenge) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return mac.doFinal(challenge);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    // Compares in constant time, so the answer's timing says nothing about the secret
+    boolean verify(byte[] challenge, byte[] proof) {
+        return MessageDigest.isEqual(proof(challenge), proof);
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_MESSAGE) {
+            throw new IOException("Invalid message length " + length + " in the replication stream");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Parses "host:port", the port defaulting to the given one
+    static InetSocketAddress parseAddress(String address, int defaultPort) {
+        int colon = address.lastIndexOf(':');
+        if (colon < 0) {
+            return new InetSocketAddress(address, defaultPort);
+        }
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * ReplicationFollower.java
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Follower side of replication (-Dserver.replication.role=follower)
+ * One thread keeps a connection to the leader: it reads the messages the leader streams,
+ * appends everything that has arrived to the local store as one batch, hands the batch to the
+ * subscribers and acknowledges it with a single ACK. The follower is the only writer of its
+ * store. MSGSTOREs are forwarded to the leader and answered once the leader has committed the
+ * message and it has come back through the stream, so a client reads its own message on this
+ * node right after storing it. When the leader is unreachable MSGGET keeps working from the
+ * local store, MSGSTORE fails, and the connection is retried
+ */
+class ReplicationFollower extends Replication {
+
+    // A forwarded MSGSTORE, waiting for the leader's answer and then for count messages locally
+    private static final class Forward {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        long count = -1;
+    }
+
+    private final InetSocketAddress leader;
+    private final MessageStore store;
+    private final Consumer<List<String>> onApply;
+    private final int maxBatch;
+    private final long retryMillis;
+    private final Thread thread;
+
+    private final AtomicLong nextRequest = new AtomicLong();
+    private final Map<Long, Forward> forwards = new ConcurrentHashMap<>();
+
+    // Forwards the leader has committed that are not in the local store yet; only used by the follower thread
+    private final List<Forward> awaitingApply = new ArrayList<>();
+
+    private volatile Socket socket;
+    private volatile DataOutputStream out;
+    private volatile boolean running = true;
+    private volatile long applied;
+
+    /**
+     * Starts following the leader at the given address. Applied batches are also handed to onApply
+     */
+    ReplicationFollower(InetSocketAddress leader, byte[] secret, MessageStore store, Consumer<List<String>> onApply,
+            int maxBatch, long retryMillis) {
+        super(secret);
+        this.leader = leader;
+        this.store = store;
+        this.onApply = onApply;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.retryMillis = retryMillis;
+        this.applied = store.size();
+        this.thread = new Thread(this::run, "replication-follower");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+
+    /**
+     * Sends a MSGSTORE to the leader. The future completes once the message is in the local
+     * store, and fails when the leader refuses it or the connection is lost before the answer,
+     * in which case the message may or may not have been stored
+     */
+    CompletableFuture<Void> forward(String user, String message) {
+        Forward forward = new Forward();
+        DataOutputStream current = out;
+        if (current == null) {
+            forward.done.completeExceptionally(new IOException("Not connected to the leader " + leader));
+            return forward.done;
+        }
+        long request = nextRequest.incrementAndGet();
+        forwards.put(request, forward);
+        try {
+            synchronized (current) {
+                current.writeByte(STORE);
+                current.writeLong(request);
+                writeString(current, user);
+                writeString(current, message);
+                current.flush();
+            }
+        } catch (IOException e) {
+            forwards.remove(request);
+            forward.done.completeExceptionally(e);
+        }
+        return forward.done;
+    }
+
+
+    @Override
+    StringBuilder describe(StringBuilder out) {
+        out.append("replication_role follower\n");
+        out.append("replication_leader ").append(leader).append(this.out != null ? " connected" : " disconnected").append('\n');
+        out.append("replication_applied ").append(applied).append('\n');
+        return out.append("replication_forwards_pending ").append(forwards.size());
+    }
+
+
+    @Override
+    void close() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void run() {
+        while (running) {
+            try (Socket connection = new Socket()) {
+                connection.connect(leader, (int) Math.max(retryMillis, 1000));
+                connection.setTcpNoDelay(true);
+                socket = connection;
+                follow(connection);
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Replication from leader {} interrupted: {}, retrying in {} ms", leader, e, retryMillis);
+                }
+            } finally {
+                disconnected();
+            }
+            if (running) {
+                try {
+                    Thread.sleep(retryMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Answers the leader's challenge and tells it where to start, then applies what it sends until the connection ends
+     */
+    private void follow(Socket connection) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 65536));
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+        connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a replication leader");
+        }
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        in.readFully(challenge);
+        synchronized (output) {
+            output.writeInt(MAGIC);
+            output.writeLong(store.size());
+            output.write(proof(challenge));
+            output.flush();
+        }
+        connection.setSoTimeout(0);
+        out = output;
+        Log.info("Following leader {} from message #{}", leader, store.size());
+
+        List<String> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            // Everything already received goes into one batch, so a busy stream takes few store writes
+            long next = store.size();
+            do {
+                next = readFrame(in, next, batch);
+            } while (batch.size() < maxBatch && in.available() > 0);
+            if (batch.isEmpty()) {
+                continue;
+            }
+            store.append(batch);
+            applied = store.size();
+            try {
+                onApply.accept(batch);
+            } catch (RuntimeException e) {
+                Log.warn("Error publishing replicated messages: {}", e);
+            }
+            batch.clear();
+            synchronized (output) {
+                output.writeByte(ACK);
+                output.writeLong(applied);
+                output.flush();
+            }
+            completeApplied();
+        }
+    }
+
+
+    /**
+     * Reads one frame: the messages of RECORDS go into the batch, where next is the index the
+     * batch's next message must have; a STORED answers a forward
+     * Returns the index after the batch
+     */
+    private long readFrame(DataInputStream in, long next, List<String> batch) throws IOException {
+        int type = in.readByte();
+        if (type == STORED) {
+            Forward forward = forwards.remove(in.readLong());
+            int status = in.readUnsignedShort();
+            long count = in.readLong();
+            if (forward != null) {
+                if (status != 200) {
+                    forward.done.completeExceptionally(new IOException("Leader answered " + status));
+                } else {
+                    forward.count = count;
+                    awaitingApply.add(forward);
+                    completeApplied();
+                }
+            }
+            return next;
+        }
+        if (type != RECORDS) {
+            throw new IOException("Unknown replication frame " + type);
+        }
+        long first = in.readLong();
+        int count = in.readInt();
+        if (first > next) {
+            throw new IOException("Replication stream skipped from message #" + next + " to #" + first);
+        }
+        for (int i = 0; i < count; i++) {
+            String message = readString(in);
+            // Messages this follower already has are skipped
+            if (first + i >= next) {
+                batch.add(message);
+                next++;
+            }
+        }
+        return next;
+    }
+
+
+    // Completes the forwards whose message is now in the local store
+    private void completeApplied() {
+        long size = store.size();
+        for (Iterator<Forward> it = awaitingApply.iterator(); it.hasNext(); ) {
+            Forward forward = it.next();
+            if (forward.count <= size) {
+                it.remove();
+                forward.done.complete(null);
+            }
+        }
+    }
+
+
+    // Fails what was sent on the lost connection, since its outcome is unknown
+    private void disconnected() {
+        out = null;
+        socket = null;
+        IOException lost = new IOException("Lost the connection to the leader " + leader);
+        for (Iterator<Forward> it = forwards.values().iterator(); it.hasNext(); ) {
+            it.next().done.completeExceptionally(lost);
+            it.remove();
+        }
+        for (Forward forward : awaitingApply) {
+            forward.done.completeExceptionally(lost);
+        }
+        awaitingApply.clear();
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * ReplicationLeader.java
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+
+/**
+ * Leader side of replication (-Dserver.replication.role=leader)
+ * Accepts followers on the replication address and, once they prove they hold the shared
+ * secret, gives each a sender thread that streams the
+ * store from the follower's position: it reads the messages back from the store, so catching up
+ * after a reconnect and following new commits are the same loop, and nothing is queued per
+ * follower. A reader thread per follower takes its acknowledgements and forwarded MSGSTOREs.
+ * In sync mode a MSGSTORE is only answered once syncReplicas followers have acknowledged it
+ */
+class ReplicationLeader extends Replication {
+
+    // A MSGSTORE waiting for followers to acknowledge count messages
+    private static final class Waiter {
+        final long count;
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+
+        Waiter(long count) {
+            this.count = count;
+        }
+    }
+
+    private final MessageStore store;
+    private final BiFunction<String, String, CompletableFuture<Long>> commit;
+    private final int syncReplicas;
+    private final long syncTimeoutMillis;
+    private final int maxBatch;
+    private final ServerSocket serverSocket;
+    private final Set<FollowerLink> followers = ConcurrentHashMap.newKeySet();
+
+    // Senders wait on it for new commits
+    private final Object commits = new Object();
+
+    // Guarded by itself, lowest count first
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(Comparator.comparingLong((Waiter w) -> w.count));
+
+    private volatile boolean running = true;
+
+    /**
+     * Starts accepting followers on the given address; only those holding secret are served. Forwarded MSGSTOREs go to commit, which
+     * takes the user id and the message and completes with the store's size once the message
+     * is stored and replicated. With syncReplicas 0 commits do not wait for followers
+     */
+    ReplicationLeader(InetSocketAddress address, byte[] secret, MessageStore store,
+            BiFunction<String, String, CompletableFuture<Long>> commit,
+            int syncReplicas, long syncTimeoutMillis, int maxBatch) throws IOException {
+        super(secret);
+        this.store = store;
+        this.commit = commit;
+        this.syncReplicas = syncReplicas;
+        this.syncTimeoutMillis = syncTimeoutMillis;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(address);
+        Thread acceptor = new Thread(this::acceptFollowers, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+
+    /**
+     * Wakes up the senders after a commit batch
+     */
+    void committed() {
+        synchronized (commits) {
+            commits.notifyAll();
+        }
+    }
+
+
+    /**
+     * Completes with count once enough followers hold the first count messages, right away
+     * in async mode. Fails with a TimeoutException after the sync timeout; the message is then
+     * stored on the leader and reaches the followers later, but was not acknowledged as replicated
+     */
+    CompletableFuture<Long> awaitReplicated(long count) {
+        if (syncReplicas == 0) {
+            return CompletableFuture.completedFuture(count);
+        }
+        Waiter waiter = new Waiter(count);
+        synchronized (waiters) {
+            if (replicated() >= count) {
+                return CompletableFuture.completedFuture(count);
+            }
+            waiters.add(waiter);
+        }
+        waiter.done.orTimeout(syncTimeoutMillis, TimeUnit.MILLISECONDS).whenComplete((done, failure) -> {
+            if (failure != null) {
+                synchronized (waiters) {
+                    waiters.remove(waiter);
+                }
+            }
+        });
+        return waiter.done;
+    }
+
+
+    @Override
+    StringBuilder describe(StringBuilder out) {
+        out.append("replication_role leader\n");
+        out.append("replication_followers ").append(followers.size()).append('\n');
+        long size = store.size();
+        for (FollowerLink follower : followers) {
+            out.append("replication_follower ").append(follower.address)
+                .append(" acked=").append(follower.acked)
+                .append(" lag=").append(Math.max(0, size - follower.acked)).append('\n');
+        }
+        return out.append("replication_replicated ").append(syncReplicas == 0 ? size : replicated());
+    }
+
+
+    @Override
+    void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.warn("Error closing replication socket: {}", e);
+        }
+        for (FollowerLink follower : followers) {
+            follower.close();
+        }
+        committed();
+        List<Waiter> left;
+        synchronized (waiters) {
+            left = new ArrayList<>(waiters);
+            waiters.clear();
+        }
+        for (Waiter waiter : left) {
+            waiter.done.completeExceptionally(new IOException("Server is shutting down"));
+        }
+    }
+
+
+    private void acceptFollowers() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                FollowerLink follower = new FollowerLink(socket);
+                Thread sender = new Thread(follower::send, "replication-send-" + follower.address);
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Error accepting follower: {}", e);
+                }
+            }
+        }
+    }
+
+
+    // Messages held by at least syncReplicas followers; call with the waiters lock held
+    private long replicated() {
+        long[] acked = new long[followers.size()];
+        int count = 0;
+        for (FollowerLink follower : followers) {
+            if (count < acked.length) {
+                acked[count++] = follower.acked;
+            }
+        }
+        if (count < syncReplicas) {
+            return 0;
+        }
+        Arrays.sort(acked, 0, count);
+        return acked[count - syncReplicas];
+    }
+
+
+    // Completes the waiters the followers' acknowledgements now cover
+    private void acknowledged() {
+        List<Waiter> done = new ArrayList<>();
+        synchronized (waiters) {
+            long replicated = replicated();
+            while (!waiters.isEmpty() && waiters.peek().count <= replicated) {
+                done.add(waiters.poll());
+            }
+        }
+        for (Waiter waiter : done) {
+            waiter.done.complete(waiter.count);
+        }
+    }
+
+
+    /**
+     * One follower's connection: the sender streams messages to it, the reader takes what it sends back
+     */
+    private final class FollowerLink {
+        final Socket socket;
+        final String address;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        // Messages the follower has stored, from its acknowledgements
+        volatile long acked;
+
+        FollowerLink(Socket socket) throws IOException {
+            this.socket = socket;
+            this.address = socket.getRemoteSocketAddress().toString();
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 65536));
+        }
+
+        /**
+         * Sends the messages from the follower's position on, a batch at a time, flushing
+         * whenever it has caught up, then waits for the next commit
+         */
+        void send() {
+            try {
+                long sent = handshake();
+                if (sent > store.size()) {
+                    throw new IOException("Follower has " + sent + " messages, more than the leader's " + store.size());
+                }
+                acked = sent;
+                followers.add(this);
+                Log.info("Follower {} connected at message #{}", address, sent);
+                Thread reader = new Thread(this::receive, "replication-receive-" + address);
+                reader.setDaemon(true);
+                reader.start();
+                acknowledged();
+
+                List<String> batch = new ArrayList<>(maxBatch);
+                while (running) {
+                    int size = store.size();
+                    if (sent < size) {
+                        int end = (int) Math.min(size, sent + maxBatch);
+                        for (int i = (int) sent; i < end; i++) {
+                            batch.add(store.get(i));
+                        }
+                        synchronized (out) {
+                            out.writeByte(RECORDS);
+                            out.writeLong(sent);
+                            out.writeInt(batch.size());
+                            for (String message : batch) {
+                                writeString(out, message);
+                            }
+                            if (end == store.size()) {
+                                out.flush();
+                            }
+                        }
+                        sent = end;
+                        batch.clear();
+                        continue;
+                    }
+                    synchronized (out) {
+                        out.flush();
+                    }
+                    synchronized (commits) {
+                        while (running && store.size() == sent) {
+                            commits.wait(1000);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Replication to follower {} stopped: {}", address, e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Challenges the follower and checks its answer, returning how many messages it has
+         */
+        private long handshake() throws IOException {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            byte[] challenge = newChallenge();
+            synchronized (out) {
+                out.writeInt(MAGIC);
+                out.write(challenge);
+                out.flush();
+            }
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a replication follower");
+            }
+            long count = in.readLong();
+            byte[] proof = new byte[PROOF_BYTES];
+            in.readFully(proof);
+            if (!verify(challenge, proof)) {
+                throw new IOException("Wrong replication secret");
+            }
+            socket.setSoTimeout(0);
+            return count;
+        }
+
+        /**
+         * Takes acknowledgements, and commits forwarded MSGSTOREs, answering each when done
+         */
+        void receive() {
+            try {
+                while (true) {
+                    int type = in.readByte();
+                    if (type == ACK) {
+                        acked = in.readLong();
+                        acknowledged();
+                    } else if (type == STORE) {
+                        long request = in.readLong();
+                        String user = readString(in);
+                        String message = readString(in);
+                        commit.apply(user, message).whenComplete((count, failure) -> stored(request, failure, count));
+                    } else {
+                        throw new IOException("Unknown replication request " + type);
+                    }
+                }
+            } catch (IOException e) {
+                if (running && !socket.isClosed()) {
+                    Log.warn("Follower {} disconnected: {}", address, e);
+                }
+            } finally {
+                close();
+            }
+        }
+
+        private void stored(long request, Throwable failure, Long count) {
+            try {
+                synchronized (out) {
+                    out.writeByte(STORED);
+                    out.writeLong(request);
+                    out.writeShort(failure == null ? 200 : 500);
+                    out.writeLong(failure == null ? count : 0);
+                    out.flush();
+                }
+                if (failure != null) {
+                    Log.error("Forwarded MSGSTORE from {} failed: {}", address, failure);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (followers.remove(this)) {
+                Log.info("Follower {} disconnected at message #{}", address, acked);
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            acknowledged();
+        }
+    }
+}
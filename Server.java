@@ -4,31 +4,256 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 public class Server {
 
-    public static final int SERVER_PORT = 3520; // Changed port number to last 4 of UMID
+    // Changed port number to last 4 of UMID; several servers on one host need their own (-Dserver.port=N)
+    public static final int SERVER_PORT = Integer.getInteger("server.port", 3520);
     
-    // Array list to store messages of the day (now dynamic)
-    private static final List<String> MESSAGES_OF_DAY = new ArrayList<>(Arrays.asList(
+    // Serving mode: "threaded" (default) serves clients concurrently, "nio" on selector event loops,
+    // "single" one at a time (-Dserver.mode=...)
+    private static final String SERVER_MODE = System.getProperty("server.mode", "threaded");
+    
+    // Cap on concurrently served clients in threaded mode, 0 = one virtual thread per client (-Dserver.workers=N)
+    private static final int MAX_WORKERS = Integer.getInteger("server.workers", 0);
+    
+    // Number of selector threads in nio mode (-Dserver.nio.threads=N)
+    private static final int NIO_THREADS = Integer.getInteger("server.nio.threads", 1);
+    
+    // Longest line a client can send in threaded and single mode; nio is bounded by its read buffer
+    // (-Dserver.maxLineLength=N)
+    private static final int MAX_LINE_LENGTH = Math.max(1, Integer.getInteger("server.maxLineLength", 65536));
+    
+    // Most connections served at once, 0 for no limit. Beyond it a new connection is answered
+    // "503" and closed ("reject"), or left in the listen backlog until a connection closes ("pause")
+    // (-Dserver.maxConnections=N, -Dserver.overload=reject|pause, -Dserver.backlog=N)
+    private static final int MAX_CONNECTIONS = Integer.getInteger("server.maxConnections", 0);
+    private static final boolean PAUSE_WHEN_FULL = "pause".equals(System.getProperty("server.overload", "reject"));
+    static final int BACKLOG = Integer.getInteger("server.backlog", 128);
+    
+    // How long a rejected connection stays half-open so the client can read the 503
+    private static final long REJECT_LINGER_MILLIS = 1000;
+    
+    // One permit per connection being served
+    private static final Semaphore CONNECTION_PERMITS = new Semaphore(MAX_CONNECTIONS > 0 ? MAX_CONNECTIONS : Integer.MAX_VALUE);
+    
+    // How long a session may go without sending a command before its connection is closed, while
+    // logged out, logged in, and between MSGSTORE and its message; 0 for no limit. Subscribers
+    // are exempt (-Dserver.idle.loggedOutMillis=N, -Dserver.idle.loggedInMillis=N, -Dserver.idle.messageMillis=N)
+    private static final long IDLE_LOGGED_OUT_MILLIS = Long.getLong("server.idle.loggedOutMillis", 60000);
+    private static final long IDLE_LOGGED_IN_MILLIS = Long.getLong("server.idle.loggedInMillis", 600000);
+    private static final long IDLE_MESSAGE_MILLIS = Long.getLong("server.idle.messageMillis", 30000);
+    
+    // Resolution of the idle timeouts (-Dserver.idle.tickMillis=N)
+    private static final long IDLE_TICK_MILLIS = Long.getLong("server.idle.tickMillis", 100);
+    
+    // How often a session without a limit in its current state is checked again, 0 when no state has one
+    private static final long IDLE_RECHECK_MILLIS = minimumLimit(IDLE_LOGGED_OUT_MILLIS, IDLE_LOGGED_IN_MILLIS, IDLE_MESSAGE_MILLIS);
+    
+    // Idle timeouts of all connections and delayed closes of rejected ones, started with the server
+    private static volatile TimerWheel idleTimers;
+    
+    // How long SHUTDOWN lets connections finish their requests and subscribers receive the last
+    // messages before the remaining connections are dropped (-Dserver.shutdown.drainMillis=N)
+    private static final long DRAIN_MILLIS = Long.getLong("server.shutdown.drainMillis", 10000);
+    
+    // MSGGET response when there are no messages, in the text and binary protocols
+    private static final byte[] NO_MESSAGES_RESPONSE = "200 OK\nNo messages available\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NO_MESSAGES_FRAME = BinaryProtocol.encodeResponse(200, "No messages available");
+    
+    private static final byte[] NEWLINE = { '\n' };
+    
+    // Messages used when there is no messages file yet
+    private static final List<String> DEFAULT_MESSAGES = Arrays.asList(
         "Anyone who has never made a mistake has never tried anything new.",
         "Imagination is more important than knowledge.",
         "The only way to discover the limits of the possible is to go beyond them into the impossible.",
         "The greatest glory in living lies not in never falling, but in rising every time we fall.",
         "It is during our darkest moments that we must focus to see the light."
-    ));
+    );
+    
+    // Serializes rewrites of the messages file
+    private static final Object SNAPSHOT_LOCK = new Object();
+    
+    // Directory holding the message files (-Dserver.dir=PATH, default the working directory)
+    private static final String DATA_DIR = System.getProperty("server.dir", ".");
+    
+    // Binary snapshot of all messages up to the last compaction, see MessageSnapshot
+    private static final Path SNAPSHOT_FILE = Paths.get(DATA_DIR, "messages.snapshot");
+    
+    // Text file of messages, one per line, read when there is no snapshot yet
+    private static final String MESSAGES_FILE = Paths.get(DATA_DIR, "messages.txt").toString();
+    
+    // Append-only log of messages stored since the last compaction
+    private static final String JOURNAL_FILE = Paths.get(DATA_DIR, "messages.journal").toString();
+    
+    // Journal fsync policy: "always" (every commit batch, before MSGSTORE is acknowledged),
+    // "group" (every server.journal.groupMillis ms) or "os" (left to the operating system) (-Dserver.journal.fsync=...)
+    private static final String JOURNAL_FSYNC = System.getProperty("server.journal.fsync", "always");
+    private static final long JOURNAL_GROUP_MILLIS = Long.getLong("server.journal.groupMillis", 10);
+    
+    // How often the journal is folded into the messages file (-Dserver.journal.compactMillis=N)
+    private static final long COMPACT_MILLIS = Long.getLong("server.journal.compactMillis", 60000);
+    
+    private static final MessageJournal.FsyncPolicy FSYNC_POLICY =
+        MessageJournal.FsyncPolicy.valueOf(JOURNAL_FSYNC.toUpperCase());
+    
+    private static final MessageJournal JOURNAL = new MessageJournal(JOURNAL_FILE, FSYNC_POLICY, JOURNAL_GROUP_MILLIS);
+    
+    // Messages of the day held on the heap and persisted through the journal, readable without locking
+    private static final MessageBoard MESSAGES_OF_DAY = new MessageBoard(JOURNAL);
+    
+    // Storage engine: "memory" keeps every message on the heap, "mapped" serves them from
+    // memory-mapped data and index files, "sharded" splits them over mapped shards that are
+    // written in parallel, "compressed" keeps them in compressed blocks (-Dserver.store=...)
+    private static final String STORE_ENGINE = System.getProperty("server.store", "memory");
+    private static final String MAPPED_DATA_FILE = Paths.get(DATA_DIR, "messages.dat").toString();
+    private static final String MAPPED_INDEX_FILE = Paths.get(DATA_DIR, "messages.idx").toString();
+    
+    // Blocks of the compressed store and the journal of the messages not in a block yet; messages
+    // per block (fixed once the store exists), decompressed blocks cached and the Deflater level
+    // (-Dserver.store.blockMessages=N, -Dserver.store.blockCache=N, -Dserver.store.compressLevel=0..9)
+    private static final String COMPRESSED_DATA_FILE = Paths.get(DATA_DIR, "messages.cdat").toString();
+    private static final String COMPRESSED_TAIL_FILE = Paths.get(DATA_DIR, "messages.ctail").toString();
+    private static final int BLOCK_MESSAGES = Integer.getInteger("server.store.blockMessages", 64);
+    private static final int BLOCK_CACHE = Integer.getInteger("server.store.blockCache", 256);
+    private static final int COMPRESS_LEVEL = Integer.getInteger("server.store.compressLevel", 1);
+    
+    // Number of shards of the sharded store, and whether a MSGSTORE goes to the shard of its user
+    // or to the next shard in turn (-Dserver.store.shards=N, -Dserver.store.shardBy=user|roundrobin)
+    // Unset, an existing store keeps its shard count and a new one gets one per CPU, up to MAX_SHARDS
+    private static final int STORE_SHARDS = Integer.getInteger("server.store.shards", 0);
+    private static final boolean SHARD_BY_USER = !"roundrobin".equals(System.getProperty("server.store.shardBy", "user"));
+    private static final AtomicInteger NEXT_SHARD = new AtomicInteger();
+    
+    // The engine in use, MESSAGES_OF_DAY, the mapped store or the sharded store
+    private static MessageStore store;
+    
+    // Where a session's MSGGET rotation starts: at the first message, or once a user logs in at
+    // an offset derived from the user id, so each user starts at their own message (-Dserver.cursor.start=zero|user)
+    private static final boolean CURSOR_BY_USER = "user".equals(System.getProperty("server.cursor.start", "zero"));
+    
+    // Most messages one MSGLIST returns; larger counts are cut down (-Dserver.list.maxCount=N)
+    private static final int LIST_MAX_COUNT = Integer.getInteger("server.list.maxCount", 10000);
+    
+    // Largest number of MSGSTOREs committed with one journal write, and how long the writer
+    // waits for a batch to fill (-Dserver.commit.maxBatch=N, -Dserver.commit.maxWaitMicros=N)
+    private static final int COMMIT_MAX_BATCH = Integer.getInteger("server.commit.maxBatch", 256);
+    private static final long COMMIT_MAX_WAIT_MICROS = Long.getLong("server.commit.maxWaitMicros", 0);
+    
+    // Writers that batch MSGSTOREs into the store, one per shard (a single one unless the store
+    // is sharded), started once the store is open
+    private static GroupCommitter[] committers;
     
-    // Counter to cycle through messages sequentially
-    private static int messageIndex = 0;
+    // Messages queued per subscriber before new ones are dropped for it, or it is disconnected
+    // (-Dserver.subscribe.queue=N, -Dserver.subscribe.overflow=drop|disconnect)
+    private static final int SUBSCRIBE_QUEUE = Integer.getInteger("server.subscribe.queue", 1024);
+    private static final Subscribers.Overflow SUBSCRIBE_OVERFLOW =
+        Subscribers.Overflow.valueOf(System.getProperty("server.subscribe.overflow", "drop").toUpperCase());
     
-    // File to persist messages
-    private static final String MESSAGES_FILE = "messages.txt";
+    // Connections that receive newly stored messages, published by the group commit writer
+    private static final Subscribers SUBSCRIBERS = new Subscribers(SUBSCRIBE_QUEUE, SUBSCRIBE_OVERFLOW);
+    
+    // How often a blocking subscriber session wakes up to check for shutdown
+    private static final long PUSH_POLL_MILLIS = 1000;
+    
+    // Replication of the message log between servers: "none" (default), "leader", which streams
+    // its commits to followers on server.replication.bind:port (loopback unless set), or "follower", which applies the stream
+    // of the leader at server.replication.leader (host:port), serves MSGGET locally and forwards
+    // MSGSTORE to the leader. With commit=sync a MSGSTORE is answered once syncReplicas followers
+    // have stored it, failing after syncTimeoutMillis. Both ends must be given the same secret, which
+    // followers prove in the handshake (-Dserver.replication.role=none|leader|follower,
+    // -Dserver.replication.secret=TEXT, -Dserver.replication.bind=ADDRESS,
+    // -Dserver.replication.port=N, -Dserver.replication.leader=HOST:PORT, -Dserver.replication.commit=async|sync,
+    // -Dserver.replication.syncReplicas=N, -Dserver.replication.syncTimeoutMillis=N,
+    // -Dserver.replication.maxBatch=N, -Dserver.replication.retryMillis=N)
+    private static final String REPLICATION_ROLE = System.getProperty("server.replication.role", "none");
+    private static final int REPLICATION_PORT = Integer.getInteger("server.replication.port", 3620);
+    private static final String REPLICATION_BIND = System.getProperty("server.replication.bind", "127.0.0.1");
+    private static final String REPLICATION_SECRET = System.getProperty("server.replication.secret", "");
+    private static final String REPLICATION_LEADER = System.getProperty("server.replication.leader", "localhost:3620");
+    private static final boolean REPLICATION_SYNC = "sync".equals(System.getProperty("server.replication.commit", "async"));
+    private static final int SYNC_REPLICAS = Integer.getInteger("server.replication.syncReplicas", 1);
+    private static final long SYNC_TIMEOUT_MILLIS = Long.getLong("server.replication.syncTimeoutMillis", 5000);
+    private static final int REPLICATION_MAX_BATCH = Integer.getInteger("server.replication.maxBatch", 1024);
+    private static final long REPLICATION_RETRY_MILLIS = Long.getLong("server.replication.retryMillis", 1000);
+    
+    // This server's role, started once the store is open; at most one of them is set
+    private static volatile ReplicationLeader replicationLeader;
+    private static volatile ReplicationFollower replicationFollower;
+    
+    // Runs journal compaction in the background
+    private static ScheduledExecutorService compactor;
+    
+    // File the metrics are appended to every server.stats.intervalMillis, off when not set
+    // (-Dserver.stats.file=PATH, -Dserver.stats.intervalMillis=N)
+    private static final String STATS_FILE = System.getProperty("server.stats.file");
+    private static final long STATS_INTERVAL_MILLIS = Long.getLong("server.stats.intervalMillis", 60000);
     
     // Flag to control server shutdown
     private static volatile boolean serverRunning = true;
     
-    // UserID and Password pairs
+    // Released by SHUTDOWN; the nio transport's main thread waits on it to start the drain
+    private static final CountDownLatch SHUTDOWN_REQUESTED = new CountDownLatch(1);
+    
+    // Listening socket, closed by SHUTDOWN to wake up the accept loop
+    private static volatile ServerSocket serverSocket;
+    
+    // Event-loop transport, only set in nio mode
+    private static volatile NioServer nioServer;
+    
+    // Sessions of all connected clients, drained when the server shuts down
+    private static final Set<SessionState> SESSIONS = ConcurrentHashMap.newKeySet();
+    
+    // Accounts file, see HashedCredentialStore (-Dserver.users.file=PATH)
+    private static final String USERS_FILE = System.getProperty("server.users.file", Paths.get(DATA_DIR, "users.txt").toString());
+    
+    // Threads that run password hashing, and how many verified logins are cached
+    // (-Dserver.auth.threads=N, -Dserver.auth.cacheSize=N)
+    private static final int AUTH_THREADS = Integer.getInteger("server.auth.threads", Runtime.getRuntime().availableProcessors());
+    private static final int AUTH_CACHE_SIZE = Integer.getInteger("server.auth.cacheSize", 10000);
+    
+    // Checks LOGIN credentials, opened at startup
+    private static CredentialStore credentials;
+    
+    // Commands per second, on average and in a burst, of each logged-in user and of each remote
+    // address while logged out; LOGIN attempts per remote address; and root's own quota, so an
+    // administrator is never held up by other clients' use. 0 for no limit. Each limit keeps
+    // buckets for about server.rate.tableSize clients (-Dserver.rate.perSecond=N, -Dserver.rate.burst=N,
+    // -Dserver.rate.loginPerSecond=N, -Dserver.rate.loginBurst=N, -Dserver.rate.rootPerSecond=N,
+    // -Dserver.rate.rootBurst=N, -Dserver.rate.tableSize=N)
+    private static final int RATE_PER_SECOND = Integer.getInteger("server.rate.perSecond", 2000);
+    private static final int RATE_BURST = Integer.getInteger("server.rate.burst", 2 * RATE_PER_SECOND);
+    private static final int LOGIN_RATE_PER_SECOND = Integer.getInteger("server.rate.loginPerSecond", 50);
+    private static final int LOGIN_RATE_BURST = Integer.getInteger("server.rate.loginBurst", 2 * LOGIN_RATE_PER_SECOND);
+    private static final int ROOT_RATE_PER_SECOND = Integer.getInteger("server.rate.rootPerSecond", 0);
+    private static final int ROOT_RATE_BURST = Integer.getInteger("server.rate.rootBurst", 2 * ROOT_RATE_PER_SECOND);
+    private static final int RATE_TABLE_SIZE = Integer.getInteger("server.rate.tableSize", 65536);
+    
+    private static final RateLimiter USER_RATE = new RateLimiter("user", RATE_PER_SECOND, RATE_BURST, RATE_TABLE_SIZE);
+    private static final RateLimiter ADDRESS_RATE = new RateLimiter("address", RATE_PER_SECOND, RATE_BURST, RATE_TABLE_SIZE);
+    private static final RateLimiter LOGIN_RATE = new RateLimiter("login", LOGIN_RATE_PER_SECOND, LOGIN_RATE_BURST, RATE_TABLE_SIZE);
+    private static final RateLimiter ROOT_RATE = new RateLimiter("root", ROOT_RATE_PER_SECOND, ROOT_RATE_BURST, 2);
+    static {
+        Metrics.addRateLimiter(USER_RATE);
+        Metrics.addRateLimiter(ADDRESS_RATE);
+        Metrics.addRateLimiter(LOGIN_RATE);
+        Metrics.addRateLimiter(ROOT_RATE);
+    }
+    
+    // Runs the full credential checks, off the I/O threads
+    private static ExecutorService authExecutor;
+    
+    // Built-in UserID and Password pairs, hashed at startup when there is no users file
     private static final String[][] USERS = {
         {"root", "root2025"},
         {"john", "john2025"},
@@ -36,27 +261,347 @@ public class Server {
         {"mary", "mary2025"}
     };
     
+    // Replies without a payload, pre-encoded as a text line and as a binary frame
+    enum Status {
+        OK(200, "200 OK"),
+        MESSAGE_FORMAT_ERROR(300, "300 message format error"),
+        BAD_REQUEST(400, "400 Bad Request"),
+        NOT_LOGGED_IN(401, "401 You are not currently logged in, login first"),
+        ALREADY_LOGGED_OUT(401, "User not logged in"),
+        NOT_ALLOWED(402, "402 User not allowed to execute this command"),
+        WRONG_CREDENTIALS(410, "410 Wrong UserID or Password"),
+        TOO_MANY_REQUESTS(429, "429 Too many requests, slow down"),
+        INTERNAL_ERROR(500, "500 Internal Server Error"),
+        SERVICE_UNAVAILABLE(503, "503 Server busy, try again later"),
+        SHUTTING_DOWN(503, "503 Server shutting down");
+
+        final int code;
+        final byte[] line;
+        final byte[] frame;
+
+        Status(int code, String text) {
+            this.code = code;
+            this.line = (text + "\n").getBytes(StandardCharsets.UTF_8);
+            this.frame = BinaryProtocol.encodeResponse(code, null);
+        }
+    }
+    
+    // Destination for responses: a buffered socket stream for blocking sessions,
+    // the connection's write buffer in nio mode. Write errors are thrown as UncheckedIOException
+    interface ResponseSink {
+        void println(String line);
+        
+        // Writes bytes that are already encoded, such as a pre-encoded MSGGET response
+        default void write(byte[] bytes) {
+            write(bytes, 0, bytes.length);
+        }
+        
+        void write(byte[] bytes, int offset, int length);
+        
+        // Writes count bytes of a file starting at position, with FileChannel.transferTo where possible
+        void transferFrom(FileChannel file, long position, long count);
+        
+        // Writes a reply once asynchronous work completes, in order with the session's other
+        // responses. Blocking sessions simply wait; nio connections pause instead of blocking
+        default <T> void whenDone(CompletableFuture<T> work, BiConsumer<T, Throwable> reply) {
+            T result = null;
+            Throwable failure = null;
+            try {
+                result = work.join();
+            } catch (CompletionException | CancellationException e) {
+                failure = e.getCause() != null ? e.getCause() : e;
+            }
+            reply.accept(result, failure);
+        }
+        
+        // Writes a MSGLIST response. Blocking sessions write it all, the socket pacing them;
+        // nio connections write it chunk by chunk as the client takes it
+        default void stream(MessageListing listing) {
+            while (!listing.writeChunk(this)) {
+                // Next chunk
+            }
+        }
+    }
+    
+    // Response sink for blocking sessions: responses are buffered and each one goes out with a
+    // single write when the command loop flushes. File regions smaller than the buffer are copied
+    // into it, so a pipelined batch of MSGGETs on the mapped store still leaves in one write;
+    // larger ones are sent with transferTo
+    private static class StreamSink implements ResponseSink {
+        private static final int BUFFER_SIZE = 8192;
+        
+        private final OutputStream out;
+        private final SocketChannel channel;
+        private byte[] copyBuffer;
+        
+        StreamSink(Socket socket) throws IOException {
+            out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            channel = socket.getChannel();
+        }
+        
+        @Override
+        public void println(String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            try {
+                out.write(bytes, 0, bytes.length);
+                out.write('\n');
+                Metrics.bytesOut(bytes.length + 1);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            try {
+                out.write(bytes, offset, length);
+                Metrics.bytesOut(length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) {
+            Metrics.bytesOut(count);
+            try {
+                if (channel != null && count >= BUFFER_SIZE) {
+                    // Keep the order: buffered responses first, then the file region straight to the socket
+                    out.flush();
+                    while (count > 0) {
+                        long sent = file.transferTo(position, count, channel);
+                        position += sent;
+                        count -= sent;
+                    }
+                    return;
+                }
+                if (copyBuffer == null) {
+                    copyBuffer = new byte[BUFFER_SIZE];
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(copyBuffer);
+                while (count > 0) {
+                    buffer.clear().limit((int) Math.min(count, copyBuffer.length));
+                    int read = file.read(buffer, position);
+                    if (read < 0) {
+                        throw new EOFException("Unexpected end of " + file);
+                    }
+                    out.write(copyBuffer, 0, read);
+                    position += read;
+                    count -= read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+    
+    // Socket input that counts the bytes read from the client
+    private static class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                Metrics.bytesIn(1);
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                Metrics.bytesIn(read);
+            }
+            return read;
+        }
+    }
+    
+    // Reads lines from a blocking client into one reusable buffer, without decoding them.
+    // A line ends at '\n', and a '\r' before it is dropped. The buffer grows for long lines up to
+    // MAX_LINE_LENGTH; a longer line is reported as overlong as soon as the cap is reached, and the
+    // rest of it is skipped without being buffered
+    private static class LineReader {
+        private final InputStream in;
+        private byte[] buffer = new byte[Math.min(8192, MAX_LINE_LENGTH)];
+        private int start = 0;
+        private int end = 0;
+        private int lineStart;
+        private int lineLength;
+        private boolean overlong;
+        private boolean skipping;
+        
+        LineReader(InputStream in) {
+            this.in = in;
+        }
+        
+        // Reads the next line, returns false at the end of the stream
+        boolean readLine() throws IOException {
+            overlong = false;
+            while (skipping) {
+                // The rest of an overlong line
+                int newline = indexOfNewline(start, end);
+                if (newline >= 0) {
+                    start = newline + 1;
+                    skipping = false;
+                } else {
+                    start = 0;
+                    end = 0;
+                    int read = in.read(buffer, 0, buffer.length);
+                    if (read < 0) {
+                        return false;
+                    }
+                    end = read;
+                }
+            }
+            int scanned = start;
+            while (true) {
+                int newline = indexOfNewline(scanned, end);
+                if (newline - start >= MAX_LINE_LENGTH) {
+                    // Arrived whole, but longer than the cap
+                    overlong = true;
+                    lineStart = start;
+                    lineLength = 0;
+                    start = newline + 1;
+                    return true;
+                }
+                if (newline >= 0) {
+                    lineStart = start;
+                    lineLength = newline > start && buffer[newline - 1] == '\r' ? newline - 1 - start : newline - start;
+                    start = newline + 1;
+                    return true;
+                }
+                if (end - start >= MAX_LINE_LENGTH) {
+                    overlong = true;
+                    skipping = true;
+                    lineStart = start;
+                    lineLength = 0;
+                    start = end;
+                    return true;
+                }
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    start = 0;
+                }
+                scanned = end;
+                if (end == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_LINE_LENGTH));
+                }
+                int read = in.read(buffer, end, buffer.length - end);
+                if (read < 0) {
+                    // A last line without a terminator
+                    lineStart = start;
+                    lineLength = end - start;
+                    start = end;
+                    return lineLength > 0;
+                }
+                end += read;
+            }
+        }
+        
+        private int indexOfNewline(int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (buffer[i] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        // Whether the line just read was longer than the cap; it has no content then
+        boolean overlong() {
+            return overlong;
+        }
+        
+        // Check if another line has at least partly arrived
+        boolean ready() throws IOException {
+            return start < end || in.available() > 0;
+        }
+        
+        byte[] buffer() {
+            return buffer;
+        }
+        
+        int lineStart() {
+            return lineStart;
+        }
+        
+        int lineLength() {
+            return lineLength;
+        }
+    }
+    
     // Session state class to track logged-in users
-    private static class SessionState {
+    static class SessionState {
         private String loggedInUser = null;
         private boolean isLoggedIn = false;
         
-        // Attempt to log in with given credentials
+        // Where the connection comes from, the key of its rate limits while logged out; null
+        // for sessions without a connection
+        private InetAddress remoteAddress = null;
+        
+        // Set after an authorized MSGSTORE, the next line is the message body
+        private boolean awaitingMessage = false;
+        
+        // Scratch space for binary response headers, null while the session speaks text
+        private byte[] frameHeader = null;
+        private boolean compressListings = false;
+        
+        // Position of the session's next MSGGET, taken modulo the message count; only read and
+        // written by the thread serving the session. Set once MSGGET or CURSOR has moved it, so
+        // a later login does not move it again
+        private int cursor = 0;
+        private boolean cursorMoved = false;
+        
+        // Tokenizes the session's text lines
+        private final CommandParser parser = new CommandParser();
+        
+        // Set by SUBSCRIBE, after which the session only receives pushed messages
+        private volatile Subscribers.Subscriber subscriber = null;
+        
+        // When the session last sent a command, read by the idle timer
+        private volatile long lastActive = System.nanoTime();
+        
+        // The pending idle check, guarded by the session; how the transport drains and closes the
+        // connection from other threads; whether the connection has ended or was closed for being idle
+        private TimerWheel.Timeout idleCheck;
+        private Runnable drainConnection;
+        private Runnable closeConnection;
+        private volatile boolean ended = false;
+        private volatile boolean idleClosed = false;
+        
+        // Attempt to log in with given credentials, checked on the calling thread
         public boolean login(String userId, String password) {
-            for (String[] user : USERS) {
-                if (user[0].equals(userId) && user[1].equals(password)) {
-                    loggedInUser = userId;
-                    isLoggedIn = true;
-                    return true;
-                }
+            if (credentials.verify(userId, password)) {
+                loggedIn(userId);
+                return true;
             }
             return false;
         }
         
+        // Log in a user whose credentials have been checked
+        void loggedIn(String userId) {
+            loggedInUser = userId;
+            isLoggedIn = true;
+            if (CURSOR_BY_USER && !cursorMoved) {
+                cursor = userCursor(userId);
+            }
+            restartIdleCheck(this);
+        }
+        
         // Log out the current user
         public void logout() {
             loggedInUser = null;
             isLoggedIn = false;
+            restartIdleCheck(this);
         }
         
         // Check if a user is logged in
@@ -73,292 +618,1527 @@ public class Server {
         public boolean isRoot() {
             return isLoggedIn && "root".equals(loggedInUser);
         }
+        
+        InetAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+        
+        void setRemoteAddress(InetAddress remoteAddress) {
+            this.remoteAddress = remoteAddress;
+        }
+        
+        // Check if the next line is the body of a MSGSTORE
+        public boolean isAwaitingMessage() {
+            return awaitingMessage;
+        }
+        
+        public void setAwaitingMessage(boolean awaitingMessage) {
+            this.awaitingMessage = awaitingMessage;
+            if (awaitingMessage) {
+                restartIdleCheck(this);
+            }
+        }
+        
+        // Check if the session negotiated the binary protocol
+        public boolean isBinary() {
+            return frameHeader != null;
+        }
+        
+        public void useBinary() {
+            frameHeader = new byte[BinaryProtocol.RESPONSE_HEADER];
+        }
+        
+        // Check if MSGLIST responses are sent compressed, negotiated with the binary protocol
+        boolean compressesListings() {
+            return compressListings;
+        }
+        
+        void useCompressedListings() {
+            compressListings = true;
+        }
+        
+        // Header buffer for binary responses, overwritten by every response
+        byte[] frameHeader() {
+            return frameHeader;
+        }
+        
+        CommandParser parser() {
+            return parser;
+        }
+        
+        // Index of the next MSGGET's message out of size > 0 messages; advances the cursor
+        int nextMessage(int size) {
+            int index = cursor < size ? cursor : cursor % size;
+            cursor = index + 1;
+            cursorMoved = true;
+            return index;
+        }
+        
+        int getCursor() {
+            return cursor;
+        }
+        
+        void setCursor(int cursor) {
+            this.cursor = cursor;
+            cursorMoved = true;
+        }
+        
+        Subscribers.Subscriber getSubscriber() {
+            return subscriber;
+        }
+        
+        void setSubscriber(Subscribers.Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
     }
 
     public static void main(String args[]) {
-        ServerSocket myServerice = null;
-        String line;
-        BufferedReader is;
-        PrintStream os;
-        Socket serviceSocket = null;
-
         // Load messages from file if it exists
-        loadMessagesFromFile();
+        if (!openMessageStore()) {
+            return;
+        }
+        if (!openCredentialStore() || !startReplication()) {
+            closeStore();
+            return;
+        }
+        if (STATS_FILE != null) {
+            Metrics.startDump(STATS_FILE, STATS_INTERVAL_MILLIS);
+        }
+        idleTimers = new TimerWheel(IDLE_TICK_MILLIS, "idle-timer");
+
+        if ("nio".equals(SERVER_MODE)) {
+            runNioServer();
+            return;
+        }
 
         // Try to open a server socket 
         try {
-            myServerice = new ServerSocket(SERVER_PORT);
-            System.out.println("Server started on port " + SERVER_PORT);
+            // Opened through a channel so accepted sockets can take FileChannel.transferTo
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(SERVER_PORT), BACKLOG);
+            serverSocket = serverChannel.socket();
+            Log.info("Server started on port {} ({} mode)", SERVER_PORT, SERVER_MODE);
         }
         catch (IOException e) {
-            System.out.println("Error starting server: " + e);
+            Log.error("Error starting server: {}", e);
+            closeStore();
             return;
         }   
 
-        // Create a socket object from the ServerSocket to listen and accept connections.
-        // Open input and output streams
+        ExecutorService workers = "single".equals(SERVER_MODE) ? null : createWorkerPool();
+
+        // Accept connections until SHUTDOWN closes the server socket.
+        // Each client gets its own SessionState and is served on its own worker.
         while (serverRunning) {
             try {
-                System.out.println("Waiting for client connection...");
-                serviceSocket = myServerice.accept();
-                System.out.println("Client connected from: " + serviceSocket.getInetAddress());
-
-                is = new BufferedReader(new InputStreamReader(serviceSocket.getInputStream()));
-                os = new PrintStream(serviceSocket.getOutputStream());
-                
-                // Create session state for this client connection
-                SessionState session = new SessionState();
-
-                // Process client commands until client disconnects
-                while ((line = is.readLine()) != null && serverRunning) {
-                    System.out.println("Received from client: " + line);
-                    
-                    // Parse and process commands
-                    String[] parts = line.trim().split("\\s+");
-                    String command = parts[0].toUpperCase();
-                    
-                    switch (command) {
-                        case "MSGGET":
-                            handleMsgGet(os);
-                            break;
-                        case "LOGIN":
-                            handleLogin(parts, os, session);
-                            break;
-                        case "LOGOUT":
-                            handleLogout(os, session);
-                            break;
-                        case "MSGSTORE":
-                            handleMsgStore(is, os, session);
-                            break;
-                        case "SHUTDOWN":
-                            if (handleShutdown(os, session)) {
-                                // Close this client connection first
-                                is.close();
-                                os.close();
-                                serviceSocket.close();
-                                System.out.println("Client disconnected after SHUTDOWN");
-                                
-                                // Then shutdown the server
-                                serverRunning = false;
-                                return; // Exit to main loop which will then exit
-                            }
-                            break;
-                        case "QUIT":
-                            handleQuit(os);
-                            break; // Exit the inner loop to close this client connection
-                        default:
-                            // Echo back any other commands (original behavior)
-                            os.println(line);
-                            break;
+                if (PAUSE_WHEN_FULL && !awaitConnectionPermit()) {
+                    continue;
+                }
+                Log.trace("Waiting for client connection...");
+                Socket serviceSocket;
+                try {
+                    serviceSocket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (PAUSE_WHEN_FULL) {
+                        releaseConnection();
                     }
+                    throw e;
                 }
+                Log.debug("Client connected from: {}", serviceSocket.getInetAddress());
 
-                // Close input and output stream and socket when client disconnects
-                if (!serverRunning) {
-                    System.out.println("Server shutting down - closing client connection");
+                if (!PAUSE_WHEN_FULL && !tryAdmitConnection()) {
+                    rejectConnection(serviceSocket);
+                    continue;
+                }
+                if (workers == null) {
+                    serveClient(serviceSocket);
                 } else {
-                    System.out.println("Client disconnected");
+                    workers.execute(() -> serveClient(serviceSocket));
                 }
-                is.close();
-                os.close();
-                serviceSocket.close();
             }   
             catch (IOException e) {
-                System.out.println("Error handling client: " + e);
-                // Try to close the socket if there was an error
-                try {
-                    if (serviceSocket != null && !serviceSocket.isClosed()) {
-                        serviceSocket.close();
-                    }
-                } catch (IOException closeException) {
-                    System.out.println("Error closing socket: " + closeException);
+                if (serverRunning) {
+                    Log.warn("Error accepting client: {}", e);
                 }
             }
         }
         
         // Clean shutdown
         try {
-            if (myServerice != null) {
-                myServerice.close();
+            if (!serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+            drainAndClose();
+            if (workers != null) {
+                workers.shutdown();
+                workers.awaitTermination(5, TimeUnit.SECONDS);
             }
-            System.out.println("Server shutdown complete.");
+            Log.info("Server shutdown complete.");
         } catch (IOException e) {
-            System.out.println("Error during server shutdown: " + e);
+            Log.warn("Error during server shutdown: {}", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
-    
-	
-	/**
-     * Handles the MSGGET command by sending "200 OK" followed by a message of the day
-     * Messages are cycled through sequentially
-     */
-    private static void handleMsgGet(PrintStream os) {
-        // Send "200 OK" response
-        os.println("200 OK");
-        
-        // Send the current message of the day
-        if (!MESSAGES_OF_DAY.isEmpty()) {
-            String message = MESSAGES_OF_DAY.get(messageIndex % MESSAGES_OF_DAY.size());
-            os.println(message);
-            
-            // Move to next message for next request
-            messageIndex = (messageIndex + 1) % MESSAGES_OF_DAY.size();
-            
-            System.out.println("Sent MSGGET response with message: \"" + message + "\"");
-        } else {
-            os.println("No messages available");
-            System.out.println("No messages available for MSGGET");
+
+
+    /**
+     * Winds the server down once it has stopped accepting. Every session finishes the request it
+     * is on, is told "503 Server shutting down" and is closed; then queued MSGSTOREs are committed
+     * and synced, all writers at once, and the store is closed; then subscribers are sent the
+     * last messages and closed. Connections still open server.shutdown.drainMillis after the
+     * start are dropped
+     */
+    private static void drainAndClose() {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+        int connections = SESSIONS.size();
+        Log.info("Draining {} connections", connections);
+        for (SessionState session : SESSIONS) {
+            session.drainConnection.run();
+        }
+        // Requests still in progress may be waiting for their MSGSTORE to commit
+        awaitSessions(session -> session.getSubscriber() == null, deadline);
+        closeStore();
+
+        // Everything is published, so subscribers close once they have sent what they queued
+        SUBSCRIBERS.close();
+        awaitSessions(session -> true, deadline);
+        int dropped = 0;
+        for (SessionState session : SESSIONS) {
+            session.closeConnection.run();
+            dropped++;
+        }
+        Log.info("Drained {} connections in {} ms, {} dropped at the deadline", connections - dropped,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), dropped);
+    }
+
+    // Waits until no session matches or the deadline has passed
+    private static void awaitSessions(Predicate<SessionState> open, long deadline) {
+        while (System.nanoTime() < deadline && SESSIONS.stream().anyMatch(open)) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
     }
 
 
     /**
-     * Handles the MSGSTORE command - two-step process
-     * Step 1: Check authorization
-     * Step 2: If authorized, read and store the message
+     * Takes a connection permit for the next accepted connection, waiting while the server is
+     * full so new clients queue in the listen backlog. Returns false if none came free in time
      */
-    private static void handleMsgStore(BufferedReader is, PrintStream os, SessionState session) {
-        // Step 1: Check if user is logged in
-        if (!session.isLoggedIn()) {
-            os.println("401 You are not currently logged in, login first");
-            System.out.println("MSGSTORE denied - user not logged in");
-            return;
-        }
-        
-        // Step 2: User is authorized, send OK and wait for message
-        os.println("200 OK");
-        System.out.println("MSGSTORE authorized for user: " + session.getLoggedInUser());
-        
+    private static boolean awaitConnectionPermit() throws IOException {
         try {
-            // Read the message from client
-            String newMessage = is.readLine();
-            if (newMessage != null && !newMessage.trim().isEmpty()) {
-                // Add message to the list
-                MESSAGES_OF_DAY.add(newMessage);
-                
-                // Save to file
-                saveMessagesToFile();
-                
-                // Send success confirmation
-                os.println("200 OK");
-                System.out.println("New message stored: \"" + newMessage + "\" by user: " + session.getLoggedInUser());
-            } else {
-                os.println("300 message format error");
-                System.out.println("MSGSTORE failed - empty message received");
-            }
-        } catch (IOException e) {
-            os.println("300 message format error");
-            System.out.println("MSGSTORE failed - error reading message: " + e);
+            return CONNECTION_PERMITS.tryAcquire(PUSH_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection to close");
         }
     }
-    
-    
+
+    // Takes a connection permit if the server is not full
+    static boolean tryAdmitConnection() {
+        return CONNECTION_PERMITS.tryAcquire();
+    }
+
+    // Returns the permit of a connection that closed
+    static void releaseConnection() {
+        CONNECTION_PERMITS.release();
+    }
+
+    // Whether nio mode should stop accepting while full, instead of rejecting
+    static boolean pauseWhenFull() {
+        return PAUSE_WHEN_FULL;
+    }
+
     /**
-     * Load messages from file on server startup
+     * Answers a connection the server has no room for with "503" and closes it, without
+     * reading from it or starting a session
      */
-    private static void loadMessagesFromFile() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(MESSAGES_FILE))) {
-            MESSAGES_OF_DAY.clear();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    MESSAGES_OF_DAY.add(line);
-                }
-            }
-            System.out.println("Loaded " + MESSAGES_OF_DAY.size() + " messages from file");
-        } catch (FileNotFoundException e) {
-            System.out.println("No existing messages file found. Using default messages.");
+    private static void rejectConnection(Socket socket) {
+        Metrics.connectionRejected();
+        try {
+            socket.getOutputStream().write(Status.SERVICE_UNAVAILABLE.line);
+            socket.shutdownOutput();
         } catch (IOException e) {
-            System.out.println("Error loading messages from file: " + e);
-        }
-        
-        // Ensure we have at least the default messages
-        if (MESSAGES_OF_DAY.isEmpty()) {
-            MESSAGES_OF_DAY.addAll(Arrays.asList(
-                "Anyone who has never made a mistake has never tried anything new.",
-				"Imagination is more important than knowledge.",
-        		"The only way to discover the limits of the possible is to go beyond them into the impossible.",
-        		"The greatest glory in living lies not in never falling, but in rising every time we fall.",
-        		"It is during our darkest moments that we must focus to see the light."
-            ));
+            Log.debug("Error rejecting client: {}", e);
         }
+        closeRejected(socket);
     }
 
-    
     /**
-     * Save messages to file for persistence
+     * Closes a rejected connection a moment after its "503" was sent. Closing with unread
+     * input resets the connection, which could discard the reply before a client that
+     * already sent a command has read it
      */
-    private static void saveMessagesToFile() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(MESSAGES_FILE))) {
-            for (String message : MESSAGES_OF_DAY) {
-                writer.println(message);
-            }
-            System.out.println("Messages saved to file successfully");
+    static void closeRejected(Closeable connection) {
+        TimerWheel timers = idleTimers;
+        if (timers == null) {
+            closeQuietly(connection);
+        } else {
+            timers.schedule(() -> closeQuietly(connection), REJECT_LINGER_MILLIS);
+        }
+    }
+
+    private static void closeQuietly(Closeable connection) {
+        try {
+            connection.close();
         } catch (IOException e) {
-            System.out.println("Error saving messages to file: " + e);
+            Log.debug("Error closing rejected client: {}", e);
         }
     }
 
 
-	/**
-     * Handles the SHUTDOWN command - only root user can execute
+    /**
+     * Creates the executor that runs client sessions in threaded mode.
+     * Uses a fixed pool when server.workers is set, otherwise one virtual thread per
+     * client (JDK 21+) with a cached platform thread pool as the fallback
      */
-    private static boolean handleShutdown(PrintStream os, SessionState session) {
-        // Check if user is root
-        if (!session.isRoot()) {
-            if (!session.isLoggedIn()) {
-                os.println("401 You are not currently logged in, login first");
-            } else {
-                os.println("402 User not allowed to execute this command");
-            }
-            System.out.println("SHUTDOWN denied for user: " + 
-                (session.isLoggedIn() ? session.getLoggedInUser() : "not logged in"));
-            return false;
+    private static ExecutorService createWorkerPool() {
+        if (MAX_WORKERS > 0) {
+            Log.info("Serving clients on a pool of {} worker threads", MAX_WORKERS);
+            return Executors.newFixedThreadPool(MAX_WORKERS);
         }
-        
-        // Root user - allow shutdown
-        os.println("200 OK");
-        System.out.println("SHUTDOWN command executed by root user. Server shutting down...");
-        return true;
-    }
-	
+        try {
+            // Looked up reflectively so the server still compiles and runs on JDK 17
+            ExecutorService virtualThreads = (ExecutorService) Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            Log.info("Serving clients on virtual threads");
+            return virtualThreads;
+        } catch (ReflectiveOperationException e) {
+            Log.info("Virtual threads not available, serving clients on a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+
+    /**
+     * Runs the command loop for one client connection until it sends QUIT,
+     * disconnects, or the server shuts down
+     */
+    private static void serveClient(Socket serviceSocket) {
+        Metrics.connectionOpened();
+        // Create session state for this client connection. Shutting down its input wakes up a
+        // session waiting for a command, and only such a session, with an end of stream
+        SessionState session = new SessionState();
+        session.setRemoteAddress(serviceSocket.getInetAddress());
+        sessionOpened(session, () -> {
+            try {
+                serviceSocket.shutdownInput();
+            } catch (IOException e) {
+                Log.debug("Error draining client: {}", e);
+            }
+        }, () -> {
+            try {
+                serviceSocket.close();
+            } catch (IOException e) {
+                Log.debug("Error closing client: {}", e);
+            }
+        });
+        try (Socket socket = serviceSocket;
+             BufferedInputStream in = new BufferedInputStream(new CountingInputStream(socket.getInputStream()))) {
+
+            StreamSink os = new StreamSink(socket);
+
+            // The first byte tells a binary client from a text command
+            boolean connected = false;
+            in.mark(1);
+            if (in.read() == BinaryProtocol.MAGIC) {
+                boolean supported = negotiateBinary(in.read(), os, session);
+                os.flush();
+                if (supported) {
+                    connected = serveFrames(in, session, os);
+                }
+            } else {
+                in.reset();
+                connected = serveLines(new LineReader(in), session, os);
+            }
+
+            if (!serverRunning) {
+                if (connected) {
+                    notifyShutdown(os, session);
+                    os.flush();
+                }
+                Log.debug("Server shutting down - closing client connection");
+            } else {
+                Log.debug("Client disconnected");
+            }
+        }
+        catch (IOException | UncheckedIOException e) {
+            // Sockets closed by the shutdown path or the idle timer end up here as well
+            if (serverRunning && !session.idleClosed) {
+                Log.warn("Error handling client: {}", e);
+            }
+        }
+        finally {
+            Metrics.connectionClosed();
+            endSession(session);
+            releaseConnection();
+        }
+    }
+
 
+    /**
+     * Processes client commands until the client disconnects. Responses to pipelined commands
+     * are flushed together once every line already received has been handled
+     * Returns false when the connection ended with QUIT or SHUTDOWN, or a subscriber that fell behind
+     */
+    private static boolean serveLines(LineReader is, SessionState session, StreamSink os) throws IOException {
+        boolean connected = true;
+        while (connected && serverRunning && is.readLine()) {
+            if (is.overlong()) {
+                handleOverlongLine(os, session);
+            } else {
+                connected = processLine(is.buffer(), is.lineStart(), is.lineLength(), session, os);
+            }
+            if (connected && session.getSubscriber() != null) {
+                return deliverPushes(session.getSubscriber(), os);
+            }
+            if (!connected || !is.ready()) {
+                os.flush();
+            }
+        }
+        return connected;
+    }
+
+
+    /**
+     * The binary counterpart of serveLines. Payloads are read into one buffer that is reused
+     * for every frame of the connection
+     */
+    private static boolean serveFrames(InputStream in, SessionState session, StreamSink os) throws IOException {
+        DataInputStream is = new DataInputStream(in);
+        byte[] payload = new byte[256];
+        boolean connected = true;
+        int opcode;
+        while (connected && serverRunning && (opcode = is.read()) >= 0) {
+            int length = is.readUnsignedShort();
+            if (length > payload.length) {
+                payload = new byte[Math.max(length, payload.length * 2)];
+            }
+            is.readFully(payload, 0, length);
+            connected = processFrame(opcode, payload, 0, length, session, os);
+            if (connected && session.getSubscriber() != null) {
+                return deliverPushes(session.getSubscriber(), os);
+            }
+            if (!connected || is.available() == 0) {
+                os.flush();
+            }
+        }
+        return connected;
+    }
+
+
+    /**
+     * Sends the messages pushed to a subscribed session, several per write when they queue up,
+     * until the subscriber is dropped for falling behind or the server shuts down. Anything
+     * the client sends is no longer read; a client that went away shows up as a write error
+     * Returns false when the subscriber fell behind
+     */
+    private static boolean deliverPushes(Subscribers.Subscriber subscriber, StreamSink os) throws IOException {
+        os.flush();
+        try {
+            while (!subscriber.isOverflowed()) {
+                // Nothing is published once the subscription is closed, so that round sends the last messages
+                boolean last = subscriber.isClosed();
+                byte[] push = last ? subscriber.poll() : subscriber.poll(PUSH_POLL_MILLIS);
+                for (; push != null; push = subscriber.poll()) {
+                    os.write(push);
+                }
+                os.flush();
+                if (last) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+        Log.debug("Closing a subscriber that fell behind");
+        return false;
+    }
+
+
+    /**
+     * Tells a session the server is shutting down, once it has been answered. Text subscribers
+     * only see the connection close, since any line would read as one more message
+     */
+    static void notifyShutdown(ResponseSink os, SessionState session) {
+        if (session.getSubscriber() == null || session.isBinary()) {
+            reply(os, session, Status.SHUTTING_DOWN);
+        }
+    }
+
+
+    /**
+     * Releases what a session holds beyond its connection, once the connection is closed
+     */
+    static void endSession(SessionState session) {
+        SESSIONS.remove(session);
+        synchronized (session) {
+            session.ended = true;
+            if (session.idleCheck != null) {
+                session.idleCheck.cancel();
+            }
+        }
+        if (session.getSubscriber() != null) {
+            SUBSCRIBERS.unsubscribe(session.getSubscriber());
+        }
+    }
+
+
+    /**
+     * Registers a new connection's session with how its transport drains it (stops taking
+     * commands once the current one is answered, then says goodbye) and closes it, which may be
+     * called from any thread, and starts watching it for being idle
+     * A session that arrives while the server is already shutting down is drained at once
+     */
+    static void sessionOpened(SessionState session, Runnable drainConnection, Runnable closeConnection) {
+        session.drainConnection = drainConnection;
+        synchronized (session) {
+            session.closeConnection = closeConnection;
+            checkIdle(session);
+        }
+        SESSIONS.add(session);
+        if (!serverRunning) {
+            drainConnection.run();
+        }
+    }
+
+    // Checks again right away after a state change, which may have shortened the limit
+    private static void restartIdleCheck(SessionState session) {
+        synchronized (session) {
+            if (session.closeConnection != null) {
+                checkIdle(session);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection, on the timer thread, once the session has gone longer without a
+     * command than its current state allows. Each check schedules the next one for when the
+     * session could first be over its limit, so an active session costs one timer and no work
+     * per command
+     */
+    private static void checkIdle(SessionState session) {
+        TimerWheel timers = idleTimers;
+        synchronized (session) {
+            if (timers == null || IDLE_RECHECK_MILLIS == 0 || session.ended) {
+                return;
+            }
+            if (session.idleCheck != null) {
+                session.idleCheck.cancel();
+            }
+            long limit = idleLimitMillis(session);
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - session.lastActive);
+            if (limit > 0 && idle >= limit) {
+                session.idleClosed = true;
+                Metrics.idleClosed();
+                Log.debug("Closing connection idle for {} ms", idle);
+                session.closeConnection.run();
+                return;
+            }
+            session.idleCheck = timers.schedule(() -> checkIdle(session), limit > 0 ? limit - idle : IDLE_RECHECK_MILLIS);
+        }
+    }
+
+    // Idle limit of the session's current state, 0 for none
+    private static long idleLimitMillis(SessionState session) {
+        if (session.getSubscriber() != null) {
+            return 0;
+        }
+        if (session.isAwaitingMessage()) {
+            return IDLE_MESSAGE_MILLIS;
+        }
+        return session.isLoggedIn() ? IDLE_LOGGED_IN_MILLIS : IDLE_LOGGED_OUT_MILLIS;
+    }
+
+    // Smallest of the limits that are set, 0 if none is
+    private static long minimumLimit(long... limits) {
+        long minimum = 0;
+        for (long limit : limits) {
+            if (limit > 0 && (minimum == 0 || limit < minimum)) {
+                minimum = limit;
+            }
+        }
+        return minimum;
+    }
+
+
+    /**
+     * Answers a client's binary protocol request, given the version byte that followed the magic
+     * byte, with the server's magic and the version both sides speak, and switches the session to
+     * it. A client of version 1 gets version 1; from COMPRESSED_VERSION on listings are compressed.
+     * Returns false for a version the server does not speak, answered with the server's highest,
+     * in which case the client is expected to disconnect (and may retry with that version)
+     */
+    static boolean negotiateBinary(int version, ResponseSink os, SessionState session) {
+        boolean supported = version >= 1 && version <= BinaryProtocol.VERSION;
+        os.write(new byte[] { (byte) BinaryProtocol.MAGIC, (byte) (supported ? version : BinaryProtocol.VERSION) });
+        if (!supported) {
+            Log.info("Client asked for unsupported binary protocol version {}", version);
+            return false;
+        }
+        session.useBinary();
+        if (version >= BinaryProtocol.COMPRESSED_VERSION) {
+            session.useCompressedListings();
+        }
+        Log.debug("Client switched to binary protocol version {}", version);
+        return true;
+    }
+
+
+    /**
+     * Runs the selector-based transport until SHUTDOWN, then drains it
+     */
+    private static void runNioServer() {
+        try {
+            nioServer = new NioServer(SERVER_PORT, NIO_THREADS);
+            Log.info("Server started on port {} (nio mode, {} I/O threads)", SERVER_PORT, NIO_THREADS);
+        }
+        catch (IOException e) {
+            Log.error("Error starting server: {}", e);
+            closeStore();
+            return;
+        }
+        nioServer.start();
+        try {
+            SHUTDOWN_REQUESTED.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopServer();
+        }
+        drainAndClose();
+        nioServer.stop();
+        Log.info("Server shutdown complete.");
+    }
+
+
+    /**
+     * Processes one line received from a client, bytes [offset, offset + length) of the array
+     * without the line terminator, and writes the responses to the sink.
+     * A line is either a command or, right after an authorized MSGSTORE, the message body,
+     * so both transports drive the same per-session state machine. The line is tokenized in
+     * place by the session's parser; only LOGIN and a message body decode it into Strings
+     * Returns false when the connection should be closed
+     */
+    static boolean processLine(byte[] line, int offset, int length, SessionState session, ResponseSink os) {
+        session.lastActive = System.nanoTime();
+        CommandParser parser = session.parser();
+        parser.parse(line, offset, length);
+        if (session.isAwaitingMessage()) {
+            session.setAwaitingMessage(false);
+            handleMessageBody(parser.isBlank() ? "" : parser.text(), os, session);
+            return true;
+        }
+
+        if (Log.isDebugEnabled()) {
+            Log.debug("Received from client: {}", parser.text());
+        }
+        
+        int command = parser.command();
+        if (!admitCommand(command, session)) {
+            reply(os, session, Status.TOO_MANY_REQUESTS);
+            Log.debug("Command over the rate limit from {}", session.getRemoteAddress());
+            return true;
+        }
+        
+        long start = System.nanoTime();
+        Metrics.Command measured = null;
+        boolean keepOpen = true;
+        switch (command) {
+            case BinaryProtocol.MSGGET:
+                handleMsgGet(os, session);
+                measured = Metrics.Command.MSGGET;
+                break;
+            case BinaryProtocol.MSGLIST:
+                if (parser.wordCount() != 3) {
+                    reply(os, session, Status.BAD_REQUEST);
+                    Log.debug("Invalid MSGLIST format received");
+                } else {
+                    handleMsgList(parser.number(1), parser.number(2), os, session);
+                }
+                measured = Metrics.Command.MSGLIST;
+                break;
+            case BinaryProtocol.CURSOR:
+                if (parser.wordCount() == 1) {
+                    handleCursor(os, session);
+                } else if (parser.wordCount() == 2) {
+                    // A malformed position reads as -1 and is answered 400
+                    handleResume(parser.number(1), os, session);
+                } else {
+                    reply(os, session, Status.BAD_REQUEST);
+                    Log.debug("Invalid CURSOR format received");
+                }
+                measured = Metrics.Command.CURSOR;
+                break;
+            case BinaryProtocol.LOGIN:
+                // Recorded when the credentials have been checked, see handleLogin
+                handleLogin(parser, os, session);
+                break;
+            case BinaryProtocol.LOGOUT:
+                handleLogout(os, session);
+                measured = Metrics.Command.LOGOUT;
+                break;
+            case BinaryProtocol.MSGSTORE:
+                // Recorded when the message body is answered, see handleMessageBody
+                handleMsgStore(os, session);
+                break;
+            case BinaryProtocol.SHUTDOWN:
+                if (handleShutdown(os, session)) {
+                    stopServer();
+                    keepOpen = false;
+                }
+                measured = Metrics.Command.SHUTDOWN;
+                break;
+            case BinaryProtocol.STATS:
+                handleStats(os, session);
+                measured = Metrics.Command.STATS;
+                break;
+            case BinaryProtocol.SUBSCRIBE:
+                handleSubscribe(os, session);
+                measured = Metrics.Command.SUBSCRIBE;
+                break;
+            case BinaryProtocol.QUIT:
+                handleQuit(os, session);
+                measured = Metrics.Command.QUIT;
+                keepOpen = false; // Close this client connection
+                break;
+            default:
+                // Echo back any other commands (original behavior)
+                os.write(line, offset, length);
+                os.write(NEWLINE);
+                Metrics.unknownCommand();
+                break;
+        }
+        if (measured != null) {
+            Metrics.record(measured, System.nanoTime() - start);
+        }
+        return keepOpen;
+    }
+
+
+    /**
+     * Processes one binary request whose payload is bytes [offset, offset + length) of the
+     * array, the counterpart of processLine for sessions that negotiated the binary protocol.
+     * Only LOGIN and MSGSTORE decode their payload; the other requests do not allocate
+     * Returns false when the connection should be closed
+     */
+    static boolean processFrame(int opcode, byte[] payload, int offset, int length, SessionState session, ResponseSink os) {
+        session.lastActive = System.nanoTime();
+        if (Log.isDebugEnabled()) {
+            Log.debug("Received binary request {} with {} bytes", BinaryProtocol.command(opcode), length);
+        }
+        if (!admitCommand(opcode, session)) {
+            reply(os, session, Status.TOO_MANY_REQUESTS);
+            Log.debug("Command over the rate limit from {}", session.getRemoteAddress());
+            return true;
+        }
+
+        long start = System.nanoTime();
+        Metrics.Command measured = null;
+        boolean keepOpen = true;
+        switch (opcode) {
+            case BinaryProtocol.MSGGET:
+                handleMsgGet(os, session);
+                measured = Metrics.Command.MSGGET;
+                break;
+            case BinaryProtocol.MSGLIST:
+                if (length != 8) {
+                    reply(os, session, Status.BAD_REQUEST);
+                    Log.debug("Invalid MSGLIST format received");
+                } else {
+                    handleMsgList(BinaryProtocol.getInt(payload, offset), BinaryProtocol.getInt(payload, offset + 4), os, session);
+                }
+                measured = Metrics.Command.MSGLIST;
+                break;
+            case BinaryProtocol.CURSOR:
+                if (length == 0) {
+                    handleCursor(os, session);
+                } else if (length == 4) {
+                    handleResume(BinaryProtocol.getInt(payload, offset), os, session);
+                } else {
+                    reply(os, session, Status.BAD_REQUEST);
+                    Log.debug("Invalid CURSOR format received");
+                }
+                measured = Metrics.Command.CURSOR;
+                break;
+            case BinaryProtocol.LOGIN:
+                int userLength = length > 0 ? payload[offset] & 0xFF : -1;
+                if (userLength < 0 || 1 + userLength > length) {
+                    reply(os, session, Status.BAD_REQUEST);
+                    Log.debug("Invalid LOGIN format received");
+                    measured = Metrics.Command.LOGIN;
+                } else {
+                    handleLogin(new String(payload, offset + 1, userLength, StandardCharsets.UTF_8),
+                        new String(payload, offset + 1 + userLength, length - 1 - userLength, StandardCharsets.UTF_8),
+                        os, session);
+                }
+                break;
+            case BinaryProtocol.LOGOUT:
+                handleLogout(os, session);
+                measured = Metrics.Command.LOGOUT;
+                break;
+            case BinaryProtocol.MSGSTORE:
+                // One step: the request carries the message. Recorded in handleMessageBody
+                if (!session.isLoggedIn()) {
+                    reply(os, session, Status.NOT_LOGGED_IN);
+                    Log.debug("MSGSTORE denied - user not logged in");
+                } else {
+                    handleMessageBody(new String(payload, offset, length, StandardCharsets.UTF_8), os, session);
+                }
+                break;
+            case BinaryProtocol.SHUTDOWN:
+                if (handleShutdown(os, session)) {
+                    stopServer();
+                    keepOpen = false;
+                }
+                measured = Metrics.Command.SHUTDOWN;
+                break;
+            case BinaryProtocol.STATS:
+                handleStats(os, session);
+                measured = Metrics.Command.STATS;
+                break;
+            case BinaryProtocol.SUBSCRIBE:
+                handleSubscribe(os, session);
+                measured = Metrics.Command.SUBSCRIBE;
+                break;
+            case BinaryProtocol.QUIT:
+                handleQuit(os, session);
+                measured = Metrics.Command.QUIT;
+                keepOpen = false;
+                break;
+            default:
+                reply(os, session, Status.BAD_REQUEST);
+                Metrics.unknownCommand();
+                break;
+        }
+        if (measured != null) {
+            Metrics.record(measured, System.nanoTime() - start);
+        }
+        return keepOpen;
+    }
+
+
+    /**
+     * Takes a token for a command from the session's rate limit: root's own quota, the user's
+     * once logged in, otherwise that of the remote address. LOGIN only counts against the
+     * address's login limit, so passwords cannot be guessed quickly but an administrator can
+     * still log in from an address whose commands are over the limit. QUIT is always allowed
+     * Returns false when the command is over the limit
+     */
+    private static boolean admitCommand(int opcode, SessionState session) {
+        if (opcode == BinaryProtocol.QUIT) {
+            return true;
+        }
+        InetAddress address = session.getRemoteAddress();
+        if (opcode == BinaryProtocol.LOGIN) {
+            return address == null || LOGIN_RATE.tryAcquire(address);
+        }
+        if (session.isRoot()) {
+            return ROOT_RATE.tryAcquire(session.getLoggedInUser());
+        }
+        if (session.isLoggedIn()) {
+            return USER_RATE.tryAcquire(session.getLoggedInUser());
+        }
+        return address == null || ADDRESS_RATE.tryAcquire(address);
+    }
+
+
+    /**
+     * Handles a line longer than the nio read buffer or, in the other modes, MAX_LINE_LENGTH
+     */
+    static void handleOverlongLine(ResponseSink os, SessionState session) {
+        if (session.isAwaitingMessage()) {
+            session.setAwaitingMessage(false);
+            reply(os, session, Status.MESSAGE_FORMAT_ERROR);
+            Log.debug("MSGSTORE failed - message too long");
+        } else {
+            reply(os, session, Status.BAD_REQUEST);
+            Log.debug("Command line too long, discarded");
+        }
+    }
+
+
+    /**
+     * Handles a binary request that did not fit in the nio read buffer
+     */
+    static void handleOverlongFrame(int opcode, ResponseSink os, SessionState session) {
+        if (opcode == BinaryProtocol.MSGSTORE && session.isLoggedIn()) {
+            reply(os, session, Status.MESSAGE_FORMAT_ERROR);
+            Log.debug("MSGSTORE failed - message too long");
+        } else {
+            reply(os, session, opcode == BinaryProtocol.MSGSTORE ? Status.NOT_LOGGED_IN : Status.BAD_REQUEST);
+            Log.debug("Binary request too long, discarded");
+        }
+    }
+
+
+    /**
+     * Sends a reply without payload in the session's protocol
+     */
+    static void reply(ResponseSink os, SessionState session, Status status) {
+        os.write(session.isBinary() ? status.frame : status.line);
+    }
+
+
+    /**
+     * Stops accepting new clients. Closing the server socket wakes up the
+     * accept loop in main, which then drains the connected clients;
+     * in nio mode the main thread is released to do the same
+     */
+    private static void stopServer() {
+        serverRunning = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            Log.warn("Error closing server socket: {}", e);
+        }
+        if (nioServer != null) {
+            nioServer.stopAccepting();
+        }
+        SHUTDOWN_REQUESTED.countDown();
+    }
+
+
+    // Check if the server is still accepting commands; false while it drains
+    static boolean isRunning() {
+        return serverRunning;
+    }
+    
+	
 	/**
-     * Handles the LOGIN command
-     * Format: LOGIN <userid> <password>
+     * Handles the MSGGET command by sending "200 OK" followed by a message of the day
+     * Each session cycles through the messages sequentially from its own cursor, so the only
+     * shared state read here is the store's current snapshot. The store keeps both lines
+     * pre-encoded, so the response is written as is, without encoding; binary sessions get
+     * the same message bytes behind a frame header
      */
-    private static void handleLogin(String[] parts, PrintStream os, SessionState session) {
-        if (parts.length != 3) {
-            os.println("400 Bad Request");
-            System.out.println("Invalid LOGIN format received");
+    private static void handleMsgGet(ResponseSink os, SessionState session) {
+        // Send the session's current message of the day and move to the next one
+        int size = store.size();
+        if (size > 0) {
+            int index = session.nextMessage(size);
+            if (session.isBinary()) {
+                store.writeFrame(index, os, session.frameHeader());
+            } else {
+                store.writeResponse(index, os);
+            }
+            if (Log.isDebugEnabled()) {
+                Log.debug("Sent MSGGET response with message #{}", index);
+            }
+        } else {
+            os.write(session.isBinary() ? NO_MESSAGES_FRAME : NO_MESSAGES_RESPONSE);
+            Log.debug("No messages available for MSGGET");
+        }
+    }
+
+
+    /**
+     * Handles the CURSOR command without a position by sending "200 OK" followed by the position
+     * of the session's next MSGGET, a message number taken modulo the message count
+     */
+    private static void handleCursor(ResponseSink os, SessionState session) {
+        String cursor = Integer.toString(session.getCursor());
+        if (session.isBinary()) {
+            os.write(BinaryProtocol.encodeResponse(200, cursor));
+        } else {
+            reply(os, session, Status.OK);
+            os.println(cursor);
+        }
+    }
+
+
+    /**
+     * Handles "CURSOR <position>" by moving the session's cursor to a position an earlier
+     * CURSOR reported and sending "200 OK", so a client that reconnects continues its
+     * rotation where it left off. Nothing is looked up: the next MSGGET starts there
+     */
+    private static void handleResume(int position, ResponseSink os, SessionState session) {
+        if (position < 0) {
+            reply(os, session, Status.BAD_REQUEST);
+            Log.debug("Invalid CURSOR position received");
+            return;
+        }
+        session.setCursor(position);
+        reply(os, session, Status.OK);
+        Log.debug("Cursor resumed at message #{}", position);
+    }
+
+
+    /**
+     * Start of a user's MSGGET rotation in the server.cursor.start=user mode: the user id's hash,
+     * spread so that similar ids start far apart, and the same on every server and every login
+     */
+    static int userCursor(String userId) {
+        int hash = userId.hashCode() * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & Integer.MAX_VALUE;
+    }
+
+
+    /**
+     * Handles the MSGLIST command by sending "200 OK" followed by up to count messages starting
+     * at the given position, numbered from 0 in the order they were stored, and a "." line.
+     * The range is cut down to the stored messages and to server.list.maxCount, so an offset
+     * past the end lists nothing; a client pages through with consecutive offsets. The messages
+     * are streamed from the store in chunks, see MessageListing
+     */
+    private static void handleMsgList(int offset, int count, ResponseSink os, SessionState session) {
+        if (offset < 0 || count < 0) {
+            reply(os, session, Status.BAD_REQUEST);
+            Log.debug("Invalid MSGLIST range received");
+            return;
+        }
+        int size = store.size();
+        int start = Math.min(offset, size);
+        int end = start + Math.min(Math.min(count, LIST_MAX_COUNT), size - start);
+        if (!session.isBinary()) {
+            os.write(Status.OK.line);
+        }
+        os.stream(new MessageListing(store, session, start, end));
+        if (Log.isDebugEnabled()) {
+            Log.debug("Listing messages #{} to #{}", start, end);
+        }
+    }
+
+
+    /**
+     * Handles the MSGSTORE command - two-step process
+     * Step 1: Check authorization
+     * Step 2: If authorized, the next line from the client is stored (see handleMessageBody)
+     */
+    private static void handleMsgStore(ResponseSink os, SessionState session) {
+        // Step 1: Check if user is logged in
+        if (!session.isLoggedIn()) {
+            reply(os, session, Status.NOT_LOGGED_IN);
+            Log.debug("MSGSTORE denied - user not logged in");
             return;
         }
         
-        String userId = parts[1];
-        String password = parts[2];
+        // Step 2: User is authorized, send OK and wait for message
+        reply(os, session, Status.OK);
+        Log.debug("MSGSTORE authorized for user: {}", session.getLoggedInUser());
+        
+        session.setAwaitingMessage(true);
+    }
+
+
+    /**
+     * Handles the second step of MSGSTORE: stores the line sent after "200 OK"
+     */
+    private static void handleMessageBody(String newMessage, ResponseSink os, SessionState session) {
+        long start = System.nanoTime();
+        if (!newMessage.isBlank() && !hasLineTerminator(newMessage)) {
+            // Queue the message for the next journal batch, or send it to the leader on a follower,
+            // and confirm once it is committed
+            String user = session.getLoggedInUser();
+            CompletableFuture<?> stored = replicationFollower != null
+                ? replicationFollower.forward(user, newMessage)
+                : commitMessage(user, newMessage);
+            os.whenDone(stored, (done, failure) -> {
+                if (failure != null) {
+                    reply(os, session, Status.INTERNAL_ERROR);
+                    Log.error("MSGSTORE failed - {}", failure);
+                } else {
+                    // Send success confirmation
+                    reply(os, session, Status.OK);
+                    Log.debug("New message stored: \"{}\" by user: {}", newMessage, user);
+                }
+                Metrics.record(Metrics.Command.MSGSTORE, System.nanoTime() - start);
+            });
+        } else {
+            reply(os, session, Status.MESSAGE_FORMAT_ERROR);
+            Log.debug("MSGSTORE failed - empty or multi-line message received");
+            Metrics.record(Metrics.Command.MSGSTORE, System.nanoTime() - start);
+        }
+    }
+
+
+    /**
+     * Whether a message holds a '\n' or '\r'. Binary MSGSTOREs can carry them, but stored they
+     * would split into extra lines for text MSGGET, MSGLIST and SUBSCRIBE clients
+     */
+    private static boolean hasLineTerminator(String message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\n' || c == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    
+    /**
+     * Commits a message on this server, completing with the number of stored messages, which
+     * covers it, once it is as durable as the replication commit mode asks for. Also commits
+     * the MSGSTOREs followers forward to a leader
+     */
+    private static CompletableFuture<Long> commitMessage(String user, String message) {
+        CompletableFuture<Long> committed = committerFor(user).submit(message).thenApply(done -> (long) store.size());
+        ReplicationLeader leader = replicationLeader;
+        return leader == null ? committed : committed.thenCompose(leader::awaitReplicated);
+    }
+
+
+    /**
+     * Called by the commit writers with each committed batch: pushes it to subscribers and
+     * wakes up the replication senders
+     */
+    private static void committed(List<String> batch) {
+        SUBSCRIBERS.publish(batch);
+        ReplicationLeader leader = replicationLeader;
+        if (leader != null) {
+            leader.committed();
+        }
+    }
+
+
+    /**
+     * Starts this server's replication role, see server.replication.role
+     * Returns false if the leader cannot listen on its replication port
+     */
+    private static boolean startReplication() {
+        if (!"leader".equals(REPLICATION_ROLE) && !"follower".equals(REPLICATION_ROLE)) {
+            return true;
+        }
+        if (REPLICATION_SECRET.isEmpty()) {
+            Log.error("Replication needs -Dserver.replication.secret, the same on the leader and its followers");
+            return false;
+        }
+        byte[] secret = REPLICATION_SECRET.getBytes(StandardCharsets.UTF_8);
+        switch (REPLICATION_ROLE) {
+            case "leader":
+                try {
+                    replicationLeader = new ReplicationLeader(new InetSocketAddress(REPLICATION_BIND, REPLICATION_PORT),
+                        secret, store, Server::commitMessage,
+                        REPLICATION_SYNC ? SYNC_REPLICAS : 0, SYNC_TIMEOUT_MILLIS, REPLICATION_MAX_BATCH);
+                    Metrics.setReplication(replicationLeader);
+                    Log.info("Replication leader on {}:{}, commits wait for {} followers", REPLICATION_BIND,
+                        REPLICATION_PORT, REPLICATION_SYNC ? SYNC_REPLICAS : 0);
+                    return true;
+                } catch (IOException e) {
+                    Log.error("Error starting replication on {}:{} - {}", REPLICATION_BIND, REPLICATION_PORT, e);
+                    return false;
+                }
+            case "follower":
+                replicationFollower = new ReplicationFollower(Replication.parseAddress(REPLICATION_LEADER, REPLICATION_PORT),
+                    secret, store, SUBSCRIBERS::publish, REPLICATION_MAX_BATCH, REPLICATION_RETRY_MILLIS);
+                Metrics.setReplication(replicationFollower);
+                return true;
+            default:
+                return true;
+        }
+    }
+
+
+    /**
+     * Picks the writer of the shard a user's message goes to. Messages of one user keep their
+     * order when sharding by user
+     */
+    private static GroupCommitter committerFor(String user) {
+        if (committers.length == 1) {
+            return committers[0];
+        }
+        int shard = SHARD_BY_USER ? user.hashCode() : NEXT_SHARD.getAndIncrement();
+        return committers[Math.floorMod(shard, committers.length)];
+    }
+
+
+    /**
+     * Load messages from the snapshot on server startup, then replay the journal on top of them
+     * Without a snapshot the text messages file is read instead and a snapshot is written from it
+     * Returns false if the snapshot or the journal cannot be read
+     */
+    private static boolean loadMessagesFromFile() {
+        List<String> messages = new ArrayList<>();
+        MessageSnapshot loaded = null;
+        if (Files.exists(SNAPSHOT_FILE)) {
+            try {
+                long start = System.nanoTime();
+                loaded = MessageSnapshot.read(SNAPSHOT_FILE);
+                Log.info("Loaded {} messages from {} in {} ms", loaded.size(), SNAPSHOT_FILE,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (IOException e) {
+                Log.error("Error loading message snapshot: {}", e);
+                return false;
+            }
+        } else {
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(MESSAGES_FILE), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        messages.add(line);
+                    }
+                }
+                Log.info("Loaded {} messages from {}, converting it to a snapshot", messages.size(), MESSAGES_FILE);
+            } catch (NoSuchFileException e) {
+                Log.info("No existing messages file found. Using default messages.");
+            } catch (IOException e) {
+                Log.error("Error loading messages from file: {}", e);
+            }
+        }
+        
+        // The journal holds the messages stored after the snapshot, numbered from its size
+        int loadedCount = loaded != null ? loaded.size() : messages.size();
+        List<String> replayedMessages = new ArrayList<>();
+        int replayed;
+        try {
+            replayed = JOURNAL.open(loadedCount, replayedMessages);
+        } catch (IOException e) {
+            Log.error("Error opening message journal: {}", e);
+            return false;
+        }
+        if (replayed > 0) {
+            Log.info("Replayed {} messages from journal", replayed);
+        }
+        
+        if (loaded != null) {
+            // The snapshot's messages are served from its bytes; only the replayed ones are encoded
+            MESSAGES_OF_DAY.replaceAll(loaded);
+            MESSAGES_OF_DAY.addAll(replayedMessages);
+        } else {
+            messages.addAll(replayedMessages);
+            // Ensure we have at least the default messages; a follower gets its messages from the leader
+            if (messages.isEmpty() && !"follower".equals(REPLICATION_ROLE)) {
+                messages.addAll(DEFAULT_MESSAGES);
+            }
+            MESSAGES_OF_DAY.replaceAll(messages);
+        }
+        
+        // Start from a snapshot that holds everything, so the journal only has to cover new messages
+        if (loaded == null || replayed > 0) {
+            saveMessagesToFile();
+        }
+        return true;
+    }
+
+
+    /**
+     * Loads the accounts from the users file, or hashes the built-in accounts when there is
+     * none, and starts the threads that check passwords
+     * Returns false if the users file cannot be read
+     */
+    private static boolean openCredentialStore() {
+        CredentialStore store;
+        try {
+            Path file = Paths.get(USERS_FILE);
+            if (Files.exists(file)) {
+                store = HashedCredentialStore.load(file);
+                Log.info("Loaded {} accounts from {}", store.size(), USERS_FILE);
+            } else {
+                store = HashedCredentialStore.of(USERS);
+                Log.info("No users file found. Using the built-in accounts.");
+            }
+        } catch (IOException e) {
+            Log.error("Error loading users file: {}", e);
+            return false;
+        }
+        credentials = new CachingCredentialStore(store, AUTH_CACHE_SIZE);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        authExecutor = Executors.newFixedThreadPool(Math.max(1, AUTH_THREADS), r -> {
+            Thread thread = new Thread(r, "auth-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        return true;
+    }
+
+
+    /**
+     * Opens the configured storage engine and starts the group commit writer
+     * The first time the mapped or sharded store is used, the messages file and journal are imported into it
+     * Returns false if the store cannot be opened
+     */
+    private static boolean openMessageStore() {
+        if ("sharded".equals(STORE_ENGINE)) {
+            try {
+                boolean importMessages = !ShardedMessageStore.exists(DATA_DIR);
+                int shardCount = STORE_SHARDS > 0 ? STORE_SHARDS : ShardedMessageStore.shardCount(DATA_DIR);
+                if (shardCount == 0) {
+                    shardCount = Math.min(Runtime.getRuntime().availableProcessors(), ShardedMessageStore.MAX_SHARDS);
+                }
+                ShardedMessageStore sharded = ShardedMessageStore.open(DATA_DIR, shardCount,
+                    FSYNC_POLICY == MessageJournal.FsyncPolicy.ALWAYS);
+                store = sharded;
+                if (importMessages) {
+                    if (!loadMessagesFromFile()) {
+                        return false;
+                    }
+                    sharded.append(Arrays.asList(MESSAGES_OF_DAY.snapshot()));
+                    MESSAGES_OF_DAY.replaceAll(Collections.emptyList());
+                    Log.info("Imported {} messages into {} shards", sharded.size(), sharded.shardCount());
+                }
+                Log.info("Opened sharded message store with {} messages in {} shards", sharded.size(), sharded.shardCount());
+                committers = new GroupCommitter[sharded.shardCount()];
+                for (int i = 0; i < committers.length; i++) {
+                    committers[i] = new GroupCommitter(sharded.shard(i), COMMIT_MAX_BATCH, COMMIT_MAX_WAIT_MICROS,
+                        Server::committed);
+                }
+                return true;
+            } catch (IOException e) {
+                Log.error("Error opening sharded message store: {}", e);
+                return false;
+            }
+        }
+        if ("compressed".equals(STORE_ENGINE)) {
+            try {
+                boolean importMessages = !CompressedMessageStore.exists(COMPRESSED_DATA_FILE);
+                CompressedMessageStore compressed = CompressedMessageStore.open(COMPRESSED_DATA_FILE, COMPRESSED_TAIL_FILE,
+                    BLOCK_MESSAGES, BLOCK_CACHE, COMPRESS_LEVEL, FSYNC_POLICY, JOURNAL_GROUP_MILLIS);
+                store = compressed;
+                if (importMessages) {
+                    if (!loadMessagesFromFile()) {
+                        return false;
+                    }
+                    compressed.append(Arrays.asList(MESSAGES_OF_DAY.snapshot()));
+                    MESSAGES_OF_DAY.replaceAll(Collections.emptyList());
+                    Log.info("Imported {} messages into {}", compressed.size(), COMPRESSED_DATA_FILE);
+                }
+                Log.info("Opened compressed message store with {} messages", compressed.size());
+            } catch (IOException e) {
+                Log.error("Error opening compressed message store: {}", e);
+                return false;
+            }
+        } else if ("mapped".equals(STORE_ENGINE)) {
+            try {
+                boolean importMessages = !MappedMessageStore.exists(MAPPED_INDEX_FILE);
+                MappedMessageStore mapped = MappedMessageStore.open(MAPPED_DATA_FILE, MAPPED_INDEX_FILE,
+                    FSYNC_POLICY == MessageJournal.FsyncPolicy.ALWAYS);
+                store = mapped;
+                if (importMessages) {
+                    if (!loadMessagesFromFile()) {
+                        return false;
+                    }
+                    mapped.append(Arrays.asList(MESSAGES_OF_DAY.snapshot()));
+                    MESSAGES_OF_DAY.replaceAll(Collections.emptyList());
+                    Log.info("Imported {} messages into {}", mapped.size(), MAPPED_DATA_FILE);
+                }
+                Log.info("Opened mapped message store with {} messages", mapped.size());
+            } catch (IOException e) {
+                Log.error("Error opening mapped message store: {}", e);
+                return false;
+            }
+        } else {
+            if (!loadMessagesFromFile()) {
+                return false;
+            }
+            store = MESSAGES_OF_DAY;
+            startCompactor();
+        }
+        committers = new GroupCommitter[] {
+            new GroupCommitter(store, COMMIT_MAX_BATCH, COMMIT_MAX_WAIT_MICROS, Server::committed)
+        };
+        return true;
+    }
+
+    
+    /**
+     * Save messages to file for persistence (journal compaction)
+     * Writes the current messages as a binary snapshot, which replaces the previous one
+     * atomically (see MessageSnapshot). Journal records that are now in the snapshot are
+     * dropped afterwards
+     */
+    private static void saveMessagesToFile() {
+        synchronized (SNAPSHOT_LOCK) {
+            try {
+                int saved = MESSAGES_OF_DAY.writeSnapshot(SNAPSHOT_FILE);
+                JOURNAL.truncateBefore(saved);
+                Log.info("Messages saved to file successfully");
+            } catch (IOException e) {
+                Log.error("Error saving messages to file: {}", e);
+            }
+        }
+    }
+
+
+    /**
+     * Schedules periodic compaction of the journal into the snapshot
+     */
+    private static void startCompactor() {
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                if (!JOURNAL.isEmpty()) {
+                    saveMessagesToFile();
+                }
+            } catch (IOException e) {
+                Log.error("Error checking message journal: {}", e);
+            }
+        }, COMPACT_MILLIS, COMPACT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Commits queued MSGSTOREs, stops compaction and forces and closes the store and journal
+     * All writers commit their last batches at once. The in-memory store is compacted one last
+     * time, so the next start does not have to replay the journal
+     */
+    private static void closeStore() {
+        if (committers != null) {
+            for (GroupCommitter committer : committers) {
+                committer.stop();
+            }
+            for (GroupCommitter committer : committers) {
+                committer.close();
+                Log.info(committer.describe());
+            }
+        }
+        // Followers catch up on what they missed when they reconnect to the next leader run
+        if (replicationLeader != null) {
+            replicationLeader.close();
+        }
+        if (replicationFollower != null) {
+            replicationFollower.close();
+        }
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                if (!JOURNAL.isEmpty()) {
+                    saveMessagesToFile();
+                }
+            } catch (IOException e) {
+                Log.error("Error checking message journal: {}", e);
+            }
+        }
+        synchronized (SNAPSHOT_LOCK) {
+            try {
+                if (store != null) {
+                    store.close();
+                }
+                JOURNAL.close();
+            } catch (IOException e) {
+                Log.error("Error closing message store: {}", e);
+            }
+        }
+        if (STATS_FILE != null) {
+            Metrics.dump(STATS_FILE);
+        }
+    }
+
+
+	/**
+     * Handles the SHUTDOWN command - only root user can execute
+     */
+    private static boolean handleShutdown(ResponseSink os, SessionState session) {
+        // Check if user is root
+        if (!session.isRoot()) {
+            reply(os, session, session.isLoggedIn() ? Status.NOT_ALLOWED : Status.NOT_LOGGED_IN);
+            Log.info("SHUTDOWN denied for user: {}",
+                session.isLoggedIn() ? session.getLoggedInUser() : "not logged in");
+            return false;
+        }
+        
+        // Root user - allow shutdown
+        reply(os, session, Status.OK);
+        Log.info("SHUTDOWN command executed by root user. Server shutting down...");
+        return true;
+    }
+	
+
+    /**
+     * Handles the STATS command - only root user can execute
+     * Sends "200 OK", one "name value" line per metric and a line with a single ".",
+     * or in binary a 200 response with the lines as its payload
+     */
+    private static void handleStats(ResponseSink os, SessionState session) {
+        if (!session.isRoot()) {
+            reply(os, session, session.isLoggedIn() ? Status.NOT_ALLOWED : Status.NOT_LOGGED_IN);
+            Log.info("STATS denied for user: {}",
+                session.isLoggedIn() ? session.getLoggedInUser() : "not logged in");
+            return;
+        }
         
-        if (session.login(userId, password)) {
-            os.println("200 OK");
-            System.out.println("User " + userId + " logged in successfully");
+        if (session.isBinary()) {
+            os.write(BinaryProtocol.encodeResponse(200, Metrics.report()));
         } else {
-            os.println("410 Wrong UserID or Password");
-            System.out.println("Failed login attempt for user: " + userId);
+            reply(os, session, Status.OK);
+            os.println(Metrics.report() + ".");
+        }
+        Log.debug("Sent STATS to root user");
+    }
+    
+
+    /**
+     * Handles the SUBSCRIBE command: replies "200 OK", after which the connection receives every
+     * newly stored message, one line each (one 200 response each in binary), and nothing else.
+     * Not allowed in single mode, where a subscriber would hold the server forever
+     */
+    private static void handleSubscribe(ResponseSink os, SessionState session) {
+        if ("single".equals(SERVER_MODE)) {
+            reply(os, session, Status.NOT_ALLOWED);
+            return;
         }
+        reply(os, session, Status.OK);
+        session.setSubscriber(SUBSCRIBERS.subscribe(session.isBinary()));
+        Log.debug("Client subscribed to new messages");
+    }
+    
+
+	/**
+     * Handles the LOGIN command
+     * Format: LOGIN <userid> <password>
+     */
+    private static void handleLogin(CommandParser parser, ResponseSink os, SessionState session) {
+        if (parser.wordCount() != 3) {
+            long start = System.nanoTime();
+            reply(os, session, Status.BAD_REQUEST);
+            Log.debug("Invalid LOGIN format received");
+            Metrics.record(Metrics.Command.LOGIN, System.nanoTime() - start);
+            return;
+        }
+        handleLogin(parser.word(1), parser.word(2), os, session);
+    }
+    
+    /**
+     * Checks the credentials and replies once that is done. Credentials verified recently are
+     * answered from the cache right away; the full check runs on the authentication executor
+     */
+    private static void handleLogin(String userId, String password, ResponseSink os, SessionState session) {
+        long start = System.nanoTime();
+        CompletableFuture<Boolean> check = credentials.isCached(userId, password)
+            ? CompletableFuture.completedFuture(true)
+            : CompletableFuture.supplyAsync(() -> credentials.verify(userId, password), authExecutor);
+        os.whenDone(check, (valid, failure) -> {
+            if (failure != null) {
+                reply(os, session, Status.INTERNAL_ERROR);
+                Log.error("LOGIN failed - error checking credentials: {}", failure);
+            } else if (valid) {
+                session.loggedIn(userId);
+                reply(os, session, Status.OK);
+                Log.info("User {} logged in successfully", userId);
+            } else {
+                reply(os, session, Status.WRONG_CREDENTIALS);
+                Log.warn("Failed login attempt for user: {}", userId);
+            }
+            Metrics.record(Metrics.Command.LOGIN, System.nanoTime() - start);
+        });
     }
     
 
 	/**
      * Handles the LOGOUT command
      */
-    private static void handleLogout(PrintStream os, SessionState session) {
+    private static void handleLogout(ResponseSink os, SessionState session) {
         if (session.isLoggedIn()) {
             String user = session.getLoggedInUser();
             session.logout();
-            os.println("200 OK");
-            System.out.println("User " + user + " logged out successfully");
+            reply(os, session, Status.OK);
+            Log.info("User {} logged out successfully", user);
         } else {
-            os.println("User not logged in");  // Still return OK even if not logged in
-            System.out.println("LOGOUT received from non-logged-in user");
+            reply(os, session, Status.ALREADY_LOGGED_OUT);  // Still return OK even if not logged in
+            Log.debug("LOGOUT received from non-logged-in user");
         }
     }
 
@@ -367,9 +2147,9 @@ public class Server {
      * Handles the QUIT command by sending "200 OK" confirmation
      * After this, the client connection will be closed
      */
-    private static void handleQuit(PrintStream os) {
+    private static void handleQuit(ResponseSink os, SessionState session) {
         // Send "200 OK" confirmation
-        os.println("200 OK");
-        System.out.println("Sent QUIT confirmation to client");
+        reply(os, session, Status.OK);
+        Log.debug("Sent QUIT confirmation to client");
     }
 }
\ No newline at end of file
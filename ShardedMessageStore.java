@@ -0,0 +1,361 @@
+/*
+ * ShardedMessageStore.java
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Message store split into shards that are written independently (-Dserver.store=sharded)
+ * Each shard is a mapped store with its own data and index files and its own lock, and the
+ * server gives each one its own group commit writer, so MSGSTOREs to different shards are
+ * written and synced in parallel. Readers see one store: messages are numbered in the global
+ * order in which their shard committed them, kept in memory as (shard, position) entries and
+ * on disk as one shard byte per message in the order file. Only appending the entries is
+ * serialized across shards. The order file is not synced with the shards; on open, entries
+ * for messages a shard lost are skipped and messages without an entry are added at the end
+ */
+final class ShardedMessageStore implements MessageStore {
+
+    // Shard ids are stored in one byte
+    static final int MAX_SHARDS = 256;
+
+    // Order entries per chunk; chunks are never moved once allocated
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // Order file header: number of shards (4)
+    private static final int ORDER_HEADER_SIZE = 4;
+
+    private final MappedMessageStore[] shards;
+    private final Shard[] writers;
+    private final FileChannel orderFile;
+    private final Path orderPath;
+
+    // Entries shard << 32 | position of every message in global order, guarded by orderLock for writing
+    private volatile long[][] order = new long[0][];
+
+    // Published after the entries are written, so readers never see a missing entry
+    private volatile int count;
+
+    // Messages of each shard that already have an entry, guarded by orderLock
+    private final int[] ordered;
+    private final Object orderLock = new Object();
+
+    private ShardedMessageStore(MappedMessageStore[] shards, FileChannel orderFile, Path orderPath) {
+        this.shards = shards;
+        this.orderFile = orderFile;
+        this.orderPath = orderPath;
+        this.ordered = new int[shards.length];
+        this.writers = new Shard[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            writers[i] = new Shard(i);
+        }
+    }
+
+
+    // Check if a sharded store already exists in the directory
+    static boolean exists(String dir) {
+        return Files.exists(orderPath(dir));
+    }
+
+
+    // Shard count of the store in the directory, 0 if there is none yet
+    static int shardCount(String dir) throws IOException {
+        Path orderPath = orderPath(dir);
+        if (!Files.exists(orderPath)) {
+            return 0;
+        }
+        try (FileChannel orderFile = FileChannel.open(orderPath, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(ORDER_HEADER_SIZE);
+            while (header.hasRemaining() && orderFile.read(header, header.position()) > 0) {
+                // Until the header is read or the file ends
+            }
+            return header.hasRemaining() ? 0 : header.getInt(0);
+        }
+    }
+
+
+    /**
+     * Opens the store in the directory, creating empty shards if needed. The shard count
+     * cannot change once the store is created
+     * With syncEachBatch every shard append is forced to disk before it returns
+     */
+    static ShardedMessageStore open(String dir, int shardCount, boolean syncEachBatch) throws IOException {
+        if (shardCount < 1 || shardCount > MAX_SHARDS) {
+            throw new IOException("Shard count must be between 1 and " + MAX_SHARDS + ": " + shardCount);
+        }
+        Path orderPath = orderPath(dir);
+        FileChannel orderFile = FileChannel.open(orderPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        MappedMessageStore[] shards = new MappedMessageStore[shardCount];
+        try {
+            ByteBuffer header = ByteBuffer.allocate(ORDER_HEADER_SIZE);
+            if (orderFile.size() < ORDER_HEADER_SIZE) {
+                header.putInt(0, shardCount);
+                orderFile.truncate(0);
+                orderFile.write(header, 0);
+                orderFile.force(false);
+            } else {
+                orderFile.read(header, 0);
+                if (header.getInt(0) != shardCount) {
+                    throw new IOException(dir + " holds a store of " + header.getInt(0) + " shards, not " + shardCount);
+                }
+            }
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = MappedMessageStore.open(Paths.get(dir, "messages-" + i + ".dat").toString(),
+                    Paths.get(dir, "messages-" + i + ".idx").toString(), syncEachBatch);
+            }
+        } catch (IOException e) {
+            for (MappedMessageStore shard : shards) {
+                if (shard != null) {
+                    shard.close();
+                }
+            }
+            orderFile.close();
+            throw e;
+        }
+
+        ShardedMessageStore store = new ShardedMessageStore(shards, orderFile, orderPath);
+        store.recoverOrder();
+        return store;
+    }
+
+    private static Path orderPath(String dir) {
+        return Paths.get(dir, "messages.order");
+    }
+
+
+    /**
+     * Rebuilds the global order from the order file and the shards, rewriting the file if
+     * it did not match them
+     */
+    private void recoverOrder() throws IOException {
+        long fileSize = orderFile.size();
+        byte[] ids = new byte[(int) Math.min(Integer.MAX_VALUE - 8, fileSize - ORDER_HEADER_SIZE)];
+        ByteBuffer buffer = ByteBuffer.wrap(ids);
+        while (buffer.hasRemaining()) {
+            if (orderFile.read(buffer, ORDER_HEADER_SIZE + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of " + orderPath);
+            }
+        }
+
+        // Keep entries whose message the shard has, then give the rest of each shard's messages one
+        byte[] recovered = new byte[Math.max(ids.length, 16)];
+        int recoveredCount = 0;
+        int[] expected = new int[shards.length];
+        for (byte id : ids) {
+            int shard = id & 0xFF;
+            if (shard < shards.length && expected[shard] < shards[shard].size()) {
+                expected[shard]++;
+                recovered[recoveredCount++] = id;
+            }
+        }
+        for (int shard = 0; shard < shards.length; shard++) {
+            for (int i = expected[shard]; i < shards[shard].size(); i++) {
+                if (recoveredCount == recovered.length) {
+                    recovered = Arrays.copyOf(recovered, recovered.length * 2);
+                }
+                recovered[recoveredCount++] = (byte) shard;
+            }
+        }
+
+        synchronized (orderLock) {
+            addEntries(recovered, recoveredCount);
+        }
+        if (recoveredCount != ids.length || !Arrays.equals(ids, 0, ids.length, recovered, 0, recoveredCount)) {
+            Log.warn("Message order did not match the shards ({} entries for {} messages), rewriting it",
+                ids.length, recoveredCount);
+            orderFile.truncate(ORDER_HEADER_SIZE);
+            writeFully(ByteBuffer.wrap(recovered, 0, recoveredCount), ORDER_HEADER_SIZE);
+            orderFile.force(false);
+        }
+    }
+
+
+    int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * The store that appends to one shard, for that shard's writer
+     */
+    MessageStore shard(int index) {
+        return writers[index];
+    }
+
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public String get(int index) {
+        long entry = entry(index);
+        return shards[(int) (entry >>> 32)].get((int) entry);
+    }
+
+    @Override
+    public void writeResponse(int index, Server.ResponseSink sink) {
+        long entry = entry(index);
+        shards[(int) (entry >>> 32)].writeResponse((int) entry, sink);
+    }
+
+    @Override
+    public void writeFrame(int index, Server.ResponseSink sink, byte[] header) {
+        long entry = entry(index);
+        shards[(int) (entry >>> 32)].writeFrame((int) entry, sink, header);
+    }
+
+    @Override
+    public void writeLine(int index, Server.ResponseSink sink) {
+        long entry = entry(index);
+        shards[(int) (entry >>> 32)].writeLine((int) entry, sink);
+    }
+
+    private long entry(int index) {
+        return order[index >>> CHUNK_BITS][index & CHUNK_MASK];
+    }
+
+
+    /**
+     * Spreads the messages over the shards round-robin. Used to import messages before the
+     * shard writers start
+     */
+    @Override
+    public void append(List<String> messages) throws IOException {
+        List<List<String>> perShard = new ArrayList<>();
+        for (int i = 0; i < shards.length; i++) {
+            perShard.add(new ArrayList<>());
+        }
+        byte[] ids = new byte[messages.size()];
+        for (int i = 0; i < ids.length; i++) {
+            int shard = (count + i) % shards.length;
+            perShard.get(shard).add(messages.get(i));
+            ids[i] = (byte) shard;
+        }
+        for (int shard = 0; shard < shards.length; shard++) {
+            shards[shard].append(perShard.get(shard));
+        }
+        addToOrder(ids);
+    }
+
+
+    /**
+     * Forces and closes the shards in parallel, each being its own files, then the order file
+     */
+    @Override
+    public void close() throws IOException {
+        List<IOException> failures = Collections.synchronizedList(new ArrayList<>());
+        Arrays.stream(shards).parallel().forEach(shard -> {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                failures.add(e);
+            }
+        });
+        IOException failure = failures.isEmpty() ? null : failures.get(0);
+        synchronized (orderLock) {
+            if (orderFile.isOpen()) {
+                orderFile.force(false);
+                orderFile.close();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+
+    /**
+     * Gives the messages just appended to the shards their global positions, in order, and
+     * writes their entries to the order file
+     */
+    private void addToOrder(byte[] ids) throws IOException {
+        synchronized (orderLock) {
+            long position = ORDER_HEADER_SIZE + (long) count;
+            addEntries(ids, ids.length);
+            writeFully(ByteBuffer.wrap(ids), position);
+        }
+    }
+
+    // Appends entries and publishes them to readers; the caller holds orderLock
+    private void addEntries(byte[] ids, int length) {
+        long[][] chunks = order;
+        int size = count;
+        for (int i = 0; i < length; i++) {
+            int chunk = size >>> CHUNK_BITS;
+            if (chunk == chunks.length) {
+                chunks = Arrays.copyOf(chunks, chunks.length + 1);
+                chunks[chunk] = new long[CHUNK_SIZE];
+            }
+            int shard = ids[i] & 0xFF;
+            chunks[chunk][size & CHUNK_MASK] = (long) shard << 32 | ordered[shard]++;
+            size++;
+        }
+        order = chunks;
+        count = size;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += orderFile.write(buffer, position);
+        }
+    }
+
+
+    /**
+     * One shard as seen by its writer: appends go to the shard and then into the global order.
+     * Reads are those of the shard alone
+     */
+    private final class Shard implements MessageStore {
+        private final int index;
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int size() {
+            return shards[index].size();
+        }
+
+        @Override
+        public String get(int position) {
+            return shards[index].get(position);
+        }
+
+        @Override
+        public void writeResponse(int position, Server.ResponseSink sink) {
+            shards[index].writeResponse(position, sink);
+        }
+
+        @Override
+        public void writeFrame(int position, Server.ResponseSink sink, byte[] header) {
+            shards[index].writeFrame(position, sink, header);
+        }
+
+        @Override
+        public void writeLine(int position, Server.ResponseSink sink) {
+            shards[index].writeLine(position, sink);
+        }
+
+        @Override
+        public synchronized void append(List<String> messages) throws IOException {
+            shards[index].append(messages);
+            byte[] ids = new byte[messages.size()];
+            Arrays.fill(ids, (byte) index);
+            addToOrder(ids);
+        }
+
+        // The sharded store closes all shards together
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Subscribers.java
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Connections that sent SUBSCRIBE, and the fan-out of newly stored messages to them
+ * The group commit writer publishes every committed batch, in commit order. Each message is
+ * encoded once per protocol and the same bytes are queued for every subscriber, so publishing
+ * costs one queue offer per subscriber. Each subscriber's transport drains its own bounded
+ * queue; when a subscriber falls so far behind that its queue is full, the message is dropped
+ * for it or the subscriber is disconnected, so a slow client never holds up the writer.
+ * At shutdown the subscriptions are closed after the last batch is published, and each
+ * transport closes its connection once it has sent what is queued
+ */
+final class Subscribers {
+
+    enum Overflow { DROP, DISCONNECT }
+
+    // Queued to wake up a transport blocked in poll; sending it writes nothing
+    private static final byte[] WAKE_UP = new byte[0];
+
+    /**
+     * One subscribed connection: its queue of encoded messages and how its transport is told
+     * there is something to send
+     */
+    static final class Subscriber {
+        final boolean binary;
+        private final BlockingQueue<byte[]> queue;
+        private volatile Runnable listener;
+        private volatile boolean overflowed;
+        private volatile boolean closed;
+
+        private Subscriber(boolean binary, int capacity) {
+            this.binary = binary;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        // Called after messages are queued; set by transports that do not block on poll
+        void setListener(Runnable listener) {
+            this.listener = listener;
+        }
+
+        // Next message to send, null if none is queued
+        byte[] poll() {
+            return queue.poll();
+        }
+
+        // Next message to send, waiting up to the timeout; null if none arrived
+        byte[] poll(long timeoutMillis) throws InterruptedException {
+            return queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // Set when the subscriber was dropped for falling behind; its connection should close
+        boolean isOverflowed() {
+            return overflowed;
+        }
+
+        // Set at shutdown, after which nothing more is queued; the connection should close
+        // once the messages still queued are sent
+        boolean isClosed() {
+            return closed;
+        }
+
+        private void close() {
+            closed = true;
+            queue.offer(WAKE_UP);
+            notifyListener();
+        }
+
+        private void notifyListener() {
+            Runnable current = listener;
+            if (current != null) {
+                current.run();
+            }
+        }
+    }
+
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final int queueCapacity;
+    private final Overflow overflow;
+    private volatile boolean closed;
+
+    Subscribers(int queueCapacity, Overflow overflow) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.overflow = overflow;
+    }
+
+
+    Subscriber subscribe(boolean binary) {
+        Subscriber subscriber = new Subscriber(binary, queueCapacity);
+        subscribers.add(subscriber);
+        Metrics.subscribed();
+        if (closed) {
+            subscriber.close();
+        }
+        return subscriber;
+    }
+
+    void unsubscribe(Subscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            Metrics.unsubscribed();
+        }
+    }
+
+    int size() {
+        return subscribers.size();
+    }
+
+
+    /**
+     * Closes every subscription at shutdown, once the last messages have been published
+     */
+    void close() {
+        closed = true;
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+
+    /**
+     * Queues the messages for every subscriber: the message and a newline for text
+     * subscribers, a 200 response frame for binary ones
+     */
+    void publish(List<String> messages) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        byte[][] lines = new byte[messages.size()][];
+        byte[][] frames = new byte[messages.size()][];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = (messages.get(i) + "\n").getBytes(StandardCharsets.UTF_8);
+            frames[i] = BinaryProtocol.encodeResponse(200, messages.get(i));
+        }
+
+        for (Subscriber subscriber : subscribers) {
+            byte[][] encoded = subscriber.binary ? frames : lines;
+            int queued = 0;
+            for (byte[] message : encoded) {
+                if (subscriber.queue.offer(message)) {
+                    queued++;
+                } else if (overflow == Overflow.DISCONNECT) {
+                    subscriber.overflowed = true;
+                    unsubscribe(subscriber);
+                    Metrics.subscriberDisconnected();
+                    Log.info("Disconnecting a subscriber that fell {} messages behind", queueCapacity);
+                    break;
+                } else {
+                    Metrics.pushDropped();
+                }
+            }
+            Metrics.pushQueued(queued);
+            subscriber.notifyListener();
+        }
+    }
+}
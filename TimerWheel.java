@@ -0,0 +1,176 @@
+/*
+ * TimerWheel.java
+ */
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical timing wheel: many timeouts for one thread that ticks
+ * Each level is a ring of SLOTS lists of timeouts; level 0 advances one slot per tick and
+ * each higher level one slot per full turn of the level below. A timeout is filed at the
+ * lowest level whose range covers its deadline, in the slot that comes round at that
+ * deadline, and moves down a level when that slot comes round. Scheduling and cancelling
+ * are O(1) and a tick only touches the timeouts that are due or move down, so thousands
+ * of connection timeouts cost about as much as one. Deadlines are rounded up to whole ticks
+ */
+final class TimerWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    // 64 ^ 4 ticks, over 19 days at 100 ms; later deadlines wait at the top level and are refiled
+    private static final int LEVELS = 4;
+
+    /**
+     * A scheduled task, unlinked from its slot when it runs or is cancelled
+     */
+    final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private Timeout prev;
+        private Timeout next;
+        private int level = -1;
+        private int slot;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // Keeps the task from running if it has not started yet
+        void cancel() {
+            synchronized (TimerWheel.this) {
+                unlink(this);
+            }
+        }
+    }
+
+    // Heads of the slot lists, by level and slot
+    private final Timeout[][] slots = new Timeout[LEVELS][SLOTS];
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+
+    // Ticks processed so far, guarded by this
+    private long currentTick;
+
+    /**
+     * Creates a wheel and the daemon thread that advances it every tick
+     */
+    TimerWheel(long tickMillis, String threadName) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        Thread ticker = new Thread(this::run, threadName);
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+
+    /**
+     * Runs the task on the wheel's thread once the delay has passed. Tasks must be short;
+     * anything slow should be handed to another thread
+     */
+    synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = (TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)) + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(task, currentTick + Math.max(1, ticks));
+        file(timeout);
+        return timeout;
+    }
+
+
+    private void run() {
+        List<Runnable> due = new ArrayList<>();
+        while (true) {
+            long target = (System.nanoTime() - startNanos) / tickNanos;
+            synchronized (this) {
+                while (currentTick < target) {
+                    advance(due);
+                }
+            }
+            for (Runnable task : due) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.warn("Error running timer task: {}", e);
+                }
+            }
+            due.clear();
+
+            long sleepNanos = startNanos + (target + 1) * tickNanos - System.nanoTime();
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(0, sleepNanos));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Moves to the next tick: refiles the higher-level slots that come round, then takes
+    // the timeouts of the level 0 slot, which are all due
+    private void advance(List<Runnable> due) {
+        currentTick++;
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                break;
+            }
+            int slot = (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+            Timeout timeout = slots[level][slot];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                unlink(timeout);
+                file(timeout);
+                timeout = next;
+            }
+        }
+
+        int slot = (int) currentTick & SLOT_MASK;
+        Timeout timeout = slots[0][slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            unlink(timeout);
+            due.add(timeout.task);
+            timeout = next;
+        }
+    }
+
+    // Links a timeout into the slot that comes round at its deadline, or at the end of the
+    // top level's range when the deadline is beyond it
+    private void file(Timeout timeout) {
+        long deadline = Math.max(timeout.deadline, currentTick);
+        long remaining = deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && remaining >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        if (remaining >= 1L << (SLOT_BITS * LEVELS)) {
+            deadline = currentTick + (1L << (SLOT_BITS * LEVELS)) - 1;
+        }
+        int slot = (int) (deadline >>> (SLOT_BITS * level)) & SLOT_MASK;
+
+        timeout.level = level;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = slots[level][slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[level][slot] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.level < 0) {
+            return;
+        }
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.level][timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.level = -1;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * NullSink.java
+ */
+
+import java.nio.channels.FileChannel;
+
+/**
+ * Response sink for the benchmarks: counts the response bytes and discards them
+ * In the default package, next to Server, because Server.ResponseSink is package-private
+ */
+public class NullSink implements Server.ResponseSink {
+
+    // Read by the benchmarks so the JIT cannot drop the writes
+    public long bytes;
+
+    @Override
+    public void println(String line) {
+        bytes += line.length() + 1;
+    }
+
+    @Override
+    public void write(byte[] response, int offset, int length) {
+        bytes += length;
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) {
+        bytes += count;
+    }
+}
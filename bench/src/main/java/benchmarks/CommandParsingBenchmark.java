@@ -0,0 +1,45 @@
+package benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of turning a received line into the command and its arguments: the server's in-place
+ * parser, and the trim/split/upper-case it replaced as the baseline. Run with -prof gc to see
+ * the allocation per line
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParsingBenchmark {
+
+    @Param({"MSGGET", "LOGIN john john2025", "  msgstore  "})
+    public String line;
+
+    private byte[] bytes;
+    private Object parser;
+
+    @Setup
+    public void setup() throws Throwable {
+        bytes = line.getBytes(StandardCharsets.UTF_8);
+        parser = (Object) ServerAccess.NEW_PARSER.invokeExact();
+    }
+
+    @Benchmark
+    public int inPlace() throws Throwable {
+        ServerAccess.PARSE.invokeExact(parser, bytes, 0, bytes.length);
+        return (int) ServerAccess.PARSED_COMMAND.invokeExact(parser);
+    }
+
+    @Benchmark
+    public String[] splitBaseline() {
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        String[] parts = text.trim().split("\\s+");
+        parts[0] = parts[0].toUpperCase();
+        return parts;
+    }
+}
@@ -0,0 +1,99 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * What compression costs and saves: MSGGET and a 1000-message MSGLIST on the in-memory store
+ * against the compressed block store, listed as text, binary and compressed binary. The bytes
+ * each listing sends and the size of each store's files are printed at the end of a trial,
+ * next to the time per operation
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"memory", "compressed"})
+        public String engine;
+
+        private Path dir;
+
+        @Setup(Level.Trial)
+        public void open() throws Throwable {
+            dir = ServerAccess.prepareDataDir(100000);
+            System.setProperty("server.store", engine);
+            if (!(boolean) ServerAccess.OPEN_MESSAGE_STORE.invokeExact()) {
+                throw new IllegalStateException("Could not open the message store in " + dir);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Throwable {
+            ServerAccess.CLOSE_STORE.invokeExact();
+            System.out.println();
+            System.out.println(engine + " store files: " + storeBytes() + " bytes");
+            ServerAccess.deleteDataDir(dir);
+        }
+
+        // Bytes of the files the store serves from, leaving out the text messages file
+        private long storeBytes() throws IOException {
+            try (Stream<Path> files = Files.list(dir)) {
+                return files.filter(file -> engine.equals("memory")
+                        ? file.getFileName().toString().equals("messages.snapshot")
+                        : file.getFileName().toString().startsWith("messages.c"))
+                    .mapToLong(file -> file.toFile().length())
+                    .sum();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Session {
+        @Param({"text", "binary", "compressed"})
+        public String protocol;
+
+        Object sink;
+        Object session;
+        long listings;
+
+        @Setup
+        public void create() throws Throwable {
+            sink = (Object) ServerAccess.NEW_SINK.invokeExact();
+            session = (Object) ServerAccess.NEW_SESSION.invokeExact();
+            if (!protocol.equals("text")) {
+                ServerAccess.USE_BINARY.invokeExact(session);
+            }
+            if (protocol.equals("compressed")) {
+                ServerAccess.USE_COMPRESSED_LISTINGS.invokeExact(session);
+            }
+        }
+
+        @TearDown
+        public void report() throws Throwable {
+            long bytes = (long) ServerAccess.SINK_BYTES.invokeExact(sink);
+            if (listings > 0) {
+                System.out.println();
+                System.out.println(protocol + " listing of 1000 messages: about " + bytes / listings + " bytes");
+            }
+        }
+    }
+
+    @Benchmark
+    public void msgGet(Store store, Session session) throws Throwable {
+        ServerAccess.HANDLE_MSG_GET.invokeExact(session.sink, session.session);
+    }
+
+    @Benchmark
+    public void msgList(Store store, Session session) throws Throwable {
+        ServerAccess.HANDLE_MSG_LIST.invokeExact(50000, 1000, session.sink, session.session);
+        session.listings++;
+    }
+}
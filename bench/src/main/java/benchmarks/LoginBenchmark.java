@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost of checking credentials in SessionState.login with the built-in accounts: a login the
+ * cache has seen, a wrong password, which always takes the full key derivation, and an
+ * unknown user, which is checked against a dummy account to take as long
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LoginBenchmark {
+
+    @Param({"root root2025", "mary wrong", "nobody wrong"})
+    public String credentials;
+
+    private String userId;
+    private String password;
+    private Object session;
+    private Path dir;
+
+    @Setup
+    public void setUp() throws Throwable {
+        String[] parts = credentials.split(" ");
+        userId = parts[0];
+        password = parts[1];
+        dir = ServerAccess.prepareDataDir(0);
+        if (!(boolean) ServerAccess.OPEN_CREDENTIAL_STORE.invokeExact()) {
+            throw new IllegalStateException("Could not open the credential store");
+        }
+        session = (Object) ServerAccess.NEW_SESSION.invokeExact();
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        ServerAccess.deleteDataDir(dir);
+    }
+
+    @Benchmark
+    public boolean login() throws Throwable {
+        return (boolean) ServerAccess.LOGIN.invokeExact(session, userId, password);
+    }
+}
@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * MSGGET throughput as more threads share the message store, each with its own session and
+ * rotation cursor, for text and binary protocol sessions. Responses go to a sink that only counts bytes, so this is the
+ * server's own cost
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MsgGetBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"memory", "mapped", "sharded", "compressed"})
+        public String engine;
+
+        private Path dir;
+
+        @Setup(Level.Trial)
+        public void open() throws Throwable {
+            dir = ServerAccess.prepareDataDir(1000);
+            System.setProperty("server.store", engine);
+            if (!(boolean) ServerAccess.OPEN_MESSAGE_STORE.invokeExact()) {
+                throw new IllegalStateException("Could not open the message store in " + dir);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Throwable {
+            ServerAccess.CLOSE_STORE.invokeExact();
+            ServerAccess.deleteDataDir(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Sink {
+        @Param({"text", "binary"})
+        public String protocol;
+
+        Object sink;
+        Object session;
+
+        @Setup
+        public void create() throws Throwable {
+            sink = (Object) ServerAccess.NEW_SINK.invokeExact();
+            session = (Object) ServerAccess.NEW_SESSION.invokeExact();
+            if (protocol.equals("binary")) {
+                ServerAccess.USE_BINARY.invokeExact(session);
+            }
+        }
+
+        @TearDown
+        public void check() throws Throwable {
+            if ((long) ServerAccess.SINK_BYTES.invokeExact(sink) == 0) {
+                throw new IllegalStateException("No MSGGET responses were written");
+            }
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads01(Store store, Sink sink) throws Throwable {
+        ServerAccess.HANDLE_MSG_GET.invokeExact(sink.sink, sink.session);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads04(Store store, Sink sink) throws Throwable {
+        ServerAccess.HANDLE_MSG_GET.invokeExact(sink.sink, sink.session);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16(Store store, Sink sink) throws Throwable {
+        ServerAccess.HANDLE_MSG_GET.invokeExact(sink.sink, sink.session);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void threads64(Store store, Sink sink) throws Throwable {
+        ServerAccess.HANDLE_MSG_GET.invokeExact(sink.sink, sink.session);
+    }
+}
@@ -0,0 +1,72 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Startup load (binary snapshot plus journal replay) and the compaction snapshot write
+ * (temporary file, fsync, atomic move) at different message counts. The data directory starts
+ * with a text messages file, which the first load converts, so every later load, warmup
+ * included, reads the snapshot
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class PersistenceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class MessageFiles {
+        @Param({"1000", "100000", "1000000"})
+        public int messages;
+
+        Path dir;
+
+        @Setup(Level.Trial)
+        public void create() throws Exception {
+            dir = ServerAccess.prepareDataDir(messages);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws Exception {
+            ServerAccess.deleteDataDir(dir);
+        }
+    }
+
+    // Each load opens the journal, so it is closed again outside the measurement
+    @State(Scope.Benchmark)
+    public static class Loaded {
+        @TearDown(Level.Invocation)
+        public void closeJournal() throws Throwable {
+            ServerAccess.CLOSE_JOURNAL.invokeExact();
+        }
+    }
+
+    // The messages are loaded once and written out on every invocation
+    @State(Scope.Benchmark)
+    public static class InMemory {
+        @Setup(Level.Trial)
+        public void load(MessageFiles files) throws Throwable {
+            if (!(boolean) ServerAccess.LOAD_MESSAGES.invokeExact()) {
+                throw new IllegalStateException("Could not load messages from " + files.dir);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void closeJournal() throws Throwable {
+            ServerAccess.CLOSE_JOURNAL.invokeExact();
+        }
+    }
+
+    @Benchmark
+    public boolean loadMessagesFromFile(MessageFiles files, Loaded loaded) throws Throwable {
+        return (boolean) ServerAccess.LOAD_MESSAGES.invokeExact();
+    }
+
+    @Benchmark
+    public void saveMessagesToFile(MessageFiles files, InMemory messages) throws Throwable {
+        ServerAccess.SAVE_MESSAGES.invokeExact();
+    }
+}
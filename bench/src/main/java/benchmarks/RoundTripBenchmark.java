@@ -0,0 +1,127 @@
+package benchmarks;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * End-to-end MSGGET round trips over loopback against a server started in the benchmark JVM,
+ * one connection per benchmark thread
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    private static final int PORT = 3520;
+    private static final byte[] MSGGET = "MSGGET\n".getBytes(StandardCharsets.UTF_8);
+
+    @State(Scope.Benchmark)
+    public static class RunningServer {
+        @Param({"threaded", "nio"})
+        public String mode;
+
+        private Path dir;
+        private Thread server;
+
+        // Why Server.main ended abnormally, reported if the server never starts listening
+        private volatile Throwable failure;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            dir = ServerAccess.prepareDataDir(1000);
+            System.setProperty("server.mode", mode);
+            server = new Thread(() -> {
+                try {
+                    ServerAccess.MAIN.invokeExact(new String[0]);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+            }, "server");
+            server.start();
+            try {
+                ServerAccess.awaitPort(PORT);
+            } catch (IllegalStateException e) {
+                if (failure != null) {
+                    throw new IllegalStateException("Server failed to start in " + mode + " mode", failure);
+                }
+                throw e;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+            try (Connection root = new Connection()) {
+                root.request("LOGIN root root2025");
+                root.request("SHUTDOWN");
+            }
+            server.join(10_000);
+            ServerAccess.deleteDataDir(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Connection implements Closeable {
+        private Socket socket;
+        private OutputStream out;
+        private BufferedReader in;
+
+        public Connection() {
+        }
+
+        @Setup(Level.Trial)
+        public void connect(RunningServer server) throws IOException {
+            open();
+        }
+
+        private void open() throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), PORT);
+            socket.setTcpNoDelay(true);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        String request(String line) throws IOException {
+            if (socket == null) {
+                open();
+            }
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return in.readLine();
+        }
+
+        @TearDown(Level.Trial)
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String msgGet(Connection connection) throws IOException {
+        return roundTrip(connection);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String msgGet16(Connection connection) throws IOException {
+        return roundTrip(connection);
+    }
+
+    private static String roundTrip(Connection connection) throws IOException {
+        connection.out.write(MSGGET);
+        connection.out.flush();
+        String status = connection.in.readLine();
+        String message = connection.in.readLine();
+        if (message == null) {
+            throw new EOFException("Server closed the connection");
+        }
+        return status;
+    }
+}
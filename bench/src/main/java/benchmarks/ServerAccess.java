@@ -0,0 +1,153 @@
+package benchmarks;
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+/**
+ * Handles on the server internals the benchmarks drive
+ * Server lives in the default package, which JMH benchmarks cannot, and most of what is
+ * measured is private, so everything is reached through method handles. Looking them up does
+ * not initialize Server: its configuration is read from system properties on the first call,
+ * so benchmarks set the data directory and mode in their setup before using any handle
+ */
+final class ServerAccess {
+
+    private static final Class<?> SERVER = load("Server");
+    private static final Class<?> SESSION_STATE = load("Server$SessionState");
+    private static final Class<?> RESPONSE_SINK = load("Server$ResponseSink");
+    private static final Class<?> MESSAGE_JOURNAL = load("MessageJournal");
+    private static final Class<?> NULL_SINK = load("NullSink");
+    private static final Class<?> COMMAND_PARSER = load("CommandParser");
+
+    static final MethodHandle HANDLE_MSG_GET = findStatic("handleMsgGet",
+        MethodType.methodType(void.class, RESPONSE_SINK, SESSION_STATE)).asType(MethodType.methodType(void.class, Object.class, Object.class));
+    static final MethodHandle HANDLE_MSG_LIST = findStatic("handleMsgList",
+        MethodType.methodType(void.class, int.class, int.class, RESPONSE_SINK, SESSION_STATE))
+        .asType(MethodType.methodType(void.class, int.class, int.class, Object.class, Object.class));
+    static final MethodHandle HANDLE_MESSAGE_BODY = findStatic("handleMessageBody",
+        MethodType.methodType(void.class, String.class, RESPONSE_SINK, SESSION_STATE))
+        .asType(MethodType.methodType(void.class, String.class, Object.class, Object.class));
+    static final MethodHandle OPEN_MESSAGE_STORE = findStatic("openMessageStore", MethodType.methodType(boolean.class));
+    static final MethodHandle CLOSE_STORE = findStatic("closeStore", MethodType.methodType(void.class));
+    static final MethodHandle OPEN_CREDENTIAL_STORE = findStatic("openCredentialStore", MethodType.methodType(boolean.class));
+    static final MethodHandle LOAD_MESSAGES = findStatic("loadMessagesFromFile", MethodType.methodType(boolean.class));
+    static final MethodHandle SAVE_MESSAGES = findStatic("saveMessagesToFile", MethodType.methodType(void.class));
+    static final MethodHandle MAIN = findStatic("main", MethodType.methodType(void.class, String[].class));
+
+    static final MethodHandle NEW_SESSION;
+    static final MethodHandle LOGIN;
+    static final MethodHandle USE_BINARY;
+    static final MethodHandle USE_COMPRESSED_LISTINGS;
+    static final MethodHandle SINK_BYTES;
+    static final MethodHandle NEW_SINK;
+    static final MethodHandle CLOSE_JOURNAL;
+    static final MethodHandle NEW_PARSER;
+    static final MethodHandle PARSE;
+    static final MethodHandle PARSED_COMMAND;
+
+    static {
+        try {
+            MethodHandles.Lookup session = MethodHandles.privateLookupIn(SESSION_STATE, MethodHandles.lookup());
+            NEW_SESSION = session.findConstructor(SESSION_STATE, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(Object.class));
+            LOGIN = session.findVirtual(SESSION_STATE, "login", MethodType.methodType(boolean.class, String.class, String.class))
+                .asType(MethodType.methodType(boolean.class, Object.class, String.class, String.class));
+            USE_BINARY = session.findVirtual(SESSION_STATE, "useBinary", MethodType.methodType(void.class))
+                .asType(MethodType.methodType(void.class, Object.class));
+            USE_COMPRESSED_LISTINGS = session.findVirtual(SESSION_STATE, "useCompressedListings", MethodType.methodType(void.class))
+                .asType(MethodType.methodType(void.class, Object.class));
+
+            MethodHandles.Lookup sink = MethodHandles.privateLookupIn(NULL_SINK, MethodHandles.lookup());
+            NEW_SINK = sink.findConstructor(NULL_SINK, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(Object.class));
+            SINK_BYTES = sink.findGetter(NULL_SINK, "bytes", long.class)
+                .asType(MethodType.methodType(long.class, Object.class));
+
+            MethodHandles.Lookup parser = MethodHandles.privateLookupIn(COMMAND_PARSER, MethodHandles.lookup());
+            NEW_PARSER = parser.findConstructor(COMMAND_PARSER, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(Object.class));
+            PARSE = parser.findVirtual(COMMAND_PARSER, "parse", MethodType.methodType(void.class, byte[].class, int.class, int.class))
+                .asType(MethodType.methodType(void.class, Object.class, byte[].class, int.class, int.class));
+            PARSED_COMMAND = parser.findVirtual(COMMAND_PARSER, "command", MethodType.methodType(int.class))
+                .asType(MethodType.methodType(int.class, Object.class));
+
+            MethodHandle journal = MethodHandles.privateLookupIn(SERVER, MethodHandles.lookup())
+                .findStaticGetter(SERVER, "JOURNAL", MESSAGE_JOURNAL);
+            MethodHandle close = MethodHandles.privateLookupIn(MESSAGE_JOURNAL, MethodHandles.lookup())
+                .findVirtual(MESSAGE_JOURNAL, "close", MethodType.methodType(void.class));
+            CLOSE_JOURNAL = MethodHandles.filterReturnValue(journal, close);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private ServerAccess() {
+    }
+
+
+    /**
+     * Points the server at a fresh temporary directory holding a messages file with the given
+     * number of messages, keeps per-request logging quiet and lifts the rate limits. Must run
+     * before Server is used
+     */
+    static Path prepareDataDir(int messages) throws IOException {
+        Path dir = Files.createTempDirectory("motd-bench");
+        try (BufferedWriter writer = Files.newBufferedWriter(dir.resolve("messages.txt"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < messages; i++) {
+                writer.write("Benchmark message number " + i + ": the only way to go fast is to measure first.");
+                writer.newLine();
+            }
+        }
+        System.setProperty("server.dir", dir.toString());
+        System.setProperty("server.log.level", "warn");
+        // One client address sends as fast as the server answers, which the rate limits would stop
+        System.setProperty("server.rate.perSecond", "0");
+        System.setProperty("server.rate.loginPerSecond", "0");
+        return dir;
+    }
+
+    // Removes a directory created by prepareDataDir
+    static void deleteDataDir(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+        Files.deleteIfExists(dir);
+    }
+
+
+    /**
+     * Waits until the server accepts connections on its port
+     */
+    static void awaitPort(int port) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                return;
+            } catch (IOException e) {
+                Thread.sleep(25);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name, false, ServerAccess.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle findStatic(String name, MethodType type) {
+        try {
+            return MethodHandles.privateLookupIn(SERVER, MethodHandles.lookup()).findStatic(SERVER, name, type);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
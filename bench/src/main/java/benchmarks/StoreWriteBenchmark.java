@@ -0,0 +1,66 @@
+package benchmarks;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * MSGSTORE throughput with 8 concurrent writers as the sharded store gets more shards, each
+ * with its own files and group commit writer, and every batch synced to disk. One shard is a
+ * single writer, as in the mapped store
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class StoreWriteBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"1", "2", "4", "8"})
+        public String shards;
+
+        private Path dir;
+
+        @Setup(Level.Trial)
+        public void open() throws Throwable {
+            dir = ServerAccess.prepareDataDir(0);
+            System.setProperty("server.store", "sharded");
+            System.setProperty("server.store.shards", shards);
+            System.setProperty("server.store.shardBy", "roundrobin");
+            if (!(boolean) ServerAccess.OPEN_MESSAGE_STORE.invokeExact()
+                    || !(boolean) ServerAccess.OPEN_CREDENTIAL_STORE.invokeExact()) {
+                throw new IllegalStateException("Could not open the stores in " + dir);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Throwable {
+            ServerAccess.CLOSE_STORE.invokeExact();
+            ServerAccess.deleteDataDir(dir);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        Object sink;
+        Object session;
+
+        @Setup
+        public void login(Store store) throws Throwable {
+            sink = (Object) ServerAccess.NEW_SINK.invokeExact();
+            session = (Object) ServerAccess.NEW_SESSION.invokeExact();
+            if (!(boolean) ServerAccess.LOGIN.invokeExact(session, "john", "john2025")) {
+                throw new IllegalStateException("Could not log in");
+            }
+        }
+    }
+
+    @Benchmark
+    public void msgStore(Writer writer) throws Throwable {
+        ServerAccess.HANDLE_MESSAGE_BODY.invokeExact("Benchmark message: the only way to go fast is to measure first.",
+            writer.sink, writer.session);
+    }
+}